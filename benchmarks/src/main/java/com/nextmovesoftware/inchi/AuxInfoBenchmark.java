@@ -0,0 +1,79 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import net.sf.jniinchi.INCHI_OPTION;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.graph.invariant.InChINumbersTools;
+import org.openscience.cdk.inchi.InChIGeneratorFactory;
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the canonical numbers (/N:) and symmetry classes (/E:) from the
+ * AuxInfo, CDK's string splitting parser against {@link AuxInfo}'s in place
+ * scan into a reused buffer. The AuxInfo is generated with -RecMet so the
+ * symmetry classes are for the input structure.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuxInfoBenchmark {
+
+  @Param({"Cl[Pt@SP1](Cl)([NH3])[NH3]",
+          "Cl[Co@OH1](Cl)(Cl)(N(=O)(=O))(N(=O)=O)N(=O)=O",
+          "C1CN2[Co@OH1]34(N1)(NCCN3)NCCN4CC2",
+          "CC(=O)Oc1ccccc1C(=O)O"})
+  public String smi;
+
+  private IAtomContainer mol;
+  private String         aux;
+  private int[]          numbers;
+
+  @Setup
+  public void setup() throws CDKException {
+    mol = new InChIMetalArch().parseSmiles(smi);
+    aux = InChIGeneratorFactory.getInstance()
+                               .getInChIGenerator(mol, Collections.singletonList(INCHI_OPTION.RecMet))
+                               .getAuxInfo();
+    numbers = new int[mol.getAtomCount()];
+  }
+
+  @Benchmark
+  public long[] cdkParseAuxInfo() {
+    long[] numbers = new long[mol.getAtomCount()];
+    InChINumbersTools.parseAuxInfo(aux, numbers);
+    return numbers;
+  }
+
+  @Benchmark
+  public int[] parseNumbers() {
+    AuxInfo.parseNumbers(aux, numbers, numbers.length);
+    return numbers;
+  }
+
+  @Benchmark
+  public long[] symmetry() {
+    return AuxInfo.symmetry(aux, mol);
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Finding the (lowest) order of a carrier rank pattern, with and without the
+ * memo, across the symmetry patterns of each geometry. The pattern is the
+ * normalised rank of each carrier as built by
+ * {@link InChIMetalArch#getConfigNum}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigNumBenchmark {
+
+  @Param({"SP:0,1,2,3", "SP:0,0,2,2", "SP:0,0,0,0",
+          "TBPY:0,1,2,3,4", "TBPY:0,0,2,2,2", "TBPY:0,0,0,0,0",
+          "OC:0,1,2,3,4,5", "OC:0,0,2,2,4,4", "OC:0,0,0,3,3,3", "OC:0,0,0,0,0,0"})
+  public String pattern;
+
+  private int[]              orders;
+  private AtomicIntegerArray memo;
+  private int[]              perm;
+
+  @Setup
+  public void setup() {
+    String[] parts = pattern.split(":");
+    switch (parts[0]) {
+      case "SP":
+        orders = ConfigTables.SP_ORDERS;
+        memo = InChIMetalArch.SP_MEMO;
+        break;
+      case "TBPY":
+        orders = ConfigTables.TBPY_ORDERS;
+        memo = InChIMetalArch.TBPY_MEMO;
+        break;
+      case "OC":
+        orders = ConfigTables.OC_ORDERS;
+        memo = InChIMetalArch.OC_MEMO;
+        break;
+      default:
+        throw new IllegalArgumentException(pattern);
+    }
+    String[] ranks = parts[1].split(",");
+    perm = new int[ranks.length];
+    for (int i = 0; i < ranks.length; i++)
+      perm[i] = Integer.parseInt(ranks[i]);
+  }
+
+  @Benchmark
+  public int backtrack() {
+    return InChIMetalArch.findByBacktrack(orders, perm, 100);
+  }
+
+  @Benchmark
+  public int memoised() {
+    return InChIMetalArch.findBest(orders, memo, perm);
+  }
+}
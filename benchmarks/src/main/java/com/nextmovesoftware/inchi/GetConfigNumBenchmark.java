@@ -0,0 +1,98 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import net.sf.jniinchi.INCHI_OPTION;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.graph.GraphUtil;
+import org.openscience.cdk.graph.invariant.Canon;
+import org.openscience.cdk.inchi.InChIGeneratorFactory;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IStereoElement;
+import org.openscience.cdk.stereo.Octahedral;
+import org.openscience.cdk.stereo.SquarePlanar;
+import org.openscience.cdk.stereo.TrigonalBipyramidal;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * {@link InChIMetalArch#getConfigNum} for the first metal centre of a
+ * molecule, i.e. the per-centre cost of the '/ma' layer once the numbers and
+ * symmetry classes are known.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetConfigNumBenchmark {
+
+  @Param({"Cl[Pt@SP1](Cl)([NH3])[NH3]",
+          "C[As@TB1](N)(O)(S)Cl",
+          "N[Co@TB1](Cl)(Cl)(Cl)N",
+          "Cl[Co@OH1](Br)(I)(F)(N)O",
+          "Cl[Co@OH1](Cl)(Cl)(N(=O)(=O))(N(=O)=O)N(=O)=O",
+          "N[Co@OH1](N)(N)(N)(N)N"})
+  public String smi;
+
+  private IStereoElement<IAtom, IAtom> se;
+  private int[]                        orders;
+  private AtomicIntegerArray           memo;
+  private long[]                       sym;
+  private int[]                        numbers;
+
+  @Setup
+  public void setup() throws CDKException {
+    IAtomContainer mol = new InChIMetalArch().parseSmiles(smi);
+    String aux = InChIGeneratorFactory.getInstance()
+                                      .getInChIGenerator(mol, Collections.<INCHI_OPTION>emptyList())
+                                      .getAuxInfo();
+    numbers = new int[mol.getAtomCount()];
+    AuxInfo.parseNumbers(aux, numbers, numbers.length);
+    sym = Canon.symmetry(mol, GraphUtil.toAdjList(mol));
+    for (IStereoElement element : mol.stereoElements()) {
+      switch (element.getConfigClass()) {
+        case IStereoElement.SP:
+          se = ((SquarePlanar) element).normalize();
+          orders = ConfigTables.SP_ORDERS;
+          memo = InChIMetalArch.SP_MEMO;
+          return;
+        case IStereoElement.TBPY:
+          se = ((TrigonalBipyramidal) element).normalize();
+          orders = ConfigTables.TBPY_ORDERS;
+          memo = InChIMetalArch.TBPY_MEMO;
+          return;
+        case IStereoElement.OC:
+          se = ((Octahedral) element).normalize();
+          orders = ConfigTables.OC_ORDERS;
+          memo = InChIMetalArch.OC_MEMO;
+          return;
+      }
+    }
+    throw new IllegalArgumentException("No metal centre: " + smi);
+  }
+
+  @Benchmark
+  public int getConfigNum() {
+    return InChIMetalArch.getConfigNum(se, orders, memo, sym, numbers);
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IStereoElement;
+import org.openscience.cdk.io.iterator.IteratingSDFReader;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 3D perception ({@link PerceiveFrom3d#perceive}) and end-to-end InChI+/ma
+ * generation of the 3D examples.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PerceiveBenchmark {
+
+  @Param({"octahedrals-3d.sdf", "platin-3d.sdf", "trigonal-bpy-3d.sdf"})
+  public String file;
+
+  private InChIMetalArch             engine;
+  private List<IAtomContainer>       mols;
+  private List<List<IStereoElement>> stereo;
+
+  @Setup
+  public void setup() throws IOException {
+    engine = new InChIMetalArch();
+    mols = new ArrayList<>();
+    stereo = new ArrayList<>();
+    try (InputStream in = getClass().getResourceAsStream("/" + file);
+         IteratingSDFReader sdfr = new IteratingSDFReader(in, SilentChemObjectBuilder.getInstance(), true)) {
+      while (sdfr.hasNext()) {
+        IAtomContainer mol = sdfr.next();
+        List<IStereoElement> elements = new ArrayList<>();
+        for (IStereoElement se : mol.stereoElements())
+          elements.add(se);
+        mols.add(mol);
+        stereo.add(elements);
+      }
+    }
+    if (mols.isEmpty())
+      throw new IllegalStateException("No records in " + file);
+  }
+
+  // perception adds stereo elements, put back what the reader created
+  private void reset(int i) {
+    mols.get(i).setStereoElements(new ArrayList<>(stereo.get(i)));
+  }
+
+  @Benchmark
+  public void perceive(Blackhole bh) {
+    for (int i = 0; i < mols.size(); i++) {
+      reset(i);
+      PerceiveFrom3d.perceive(mols.get(i));
+      bh.consume(mols.get(i));
+    }
+  }
+
+  @Benchmark
+  public void perceiveAndGenerate(Blackhole bh) {
+    for (int i = 0; i < mols.size(); i++) {
+      reset(i);
+      PerceiveFrom3d.perceive(mols.get(i));
+      bh.consume(engine.generate(mols.get(i)));
+    }
+  }
+}
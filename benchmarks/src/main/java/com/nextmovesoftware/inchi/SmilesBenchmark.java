@@ -0,0 +1,74 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openscience.cdk.exception.InvalidSmilesException;
+import org.openscience.cdk.graph.GraphUtil;
+import org.openscience.cdk.graph.invariant.Canon;
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The stages of the SMILES pipeline: parsing, symmetry perception
+ * ({@link Canon#symmetry}) and end-to-end InChI+/ma generation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmilesBenchmark {
+
+  @Param({"Cl[Pt@SP1](Cl)([NH3])[NH3]",
+          "F[P@TB1](F)(Cl)(Cl)Cl",
+          "Cl[Co@OH1](Cl)(Cl)(N(=O)(=O))(N(=O)=O)N(=O)=O",
+          "C1CN2[Co@OH1]34(N1)(NCCN3)NCCN4CC2",
+          "CC(=O)Oc1ccccc1C(=O)O"})
+  public String smi;
+
+  private InChIMetalArch engine;
+  private IAtomContainer mol;
+
+  @Setup
+  public void setup() throws InvalidSmilesException {
+    engine = new InChIMetalArch();
+    mol = engine.parseSmiles(smi);
+  }
+
+  @Benchmark
+  public IAtomContainer parseSmiles() throws InvalidSmilesException {
+    return engine.parseSmiles(smi);
+  }
+
+  @Benchmark
+  public long[] symmetry() {
+    return Canon.symmetry(mol, GraphUtil.toAdjList(mol));
+  }
+
+  @Benchmark
+  public String generateFromMolecule() {
+    return engine.generate(mol);
+  }
+
+  @Benchmark
+  public String generateFromSmiles() {
+    return engine.generate(smi);
+  }
+}
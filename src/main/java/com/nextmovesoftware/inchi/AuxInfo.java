@@ -0,0 +1,227 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+
+import java.util.Arrays;
+
+/**
+ * Utilities for extracting information from the InChI AuxInfo.
+ */
+final class AuxInfo {
+
+  private AuxInfo() {
+  }
+
+  /**
+   * Read the canonical numbers from the main numbering (/N:) layer of the
+   * AuxInfo, as InChINumbersTools.parseAuxInfo but into a primitive array
+   * that may be reused between molecules. The layer is scanned in place,
+   * nothing is split or boxed. Atoms not in the layer (e.g. explicit
+   * hydrogens InChI removed) are numbered 0.
+   *
+   * @param aux     the AuxInfo
+   * @param numbers the canonical number (from 1) of each atom (output)
+   * @param nAtoms  the number of atoms in the molecule
+   * @throws IllegalArgumentException the AuxInfo was not for the molecule
+   */
+  static void parseNumbers(String aux, int[] numbers, int nAtoms) {
+    int pos = aux.indexOf("/N:");
+    if (pos < 0)
+      throw new IllegalArgumentException("No /N: layer in AuxInfo");
+    Arrays.fill(numbers, 0, nAtoms, 0);
+    int len = aux.length();
+    int num = 0;
+    pos += 3;
+    while (pos < len && aux.charAt(pos) != '/') {
+      int idx = 0;
+      int beg = pos;
+      char c;
+      while (pos < len && (c = aux.charAt(pos)) >= '0' && c <= '9') {
+        idx = 10 * idx + (c - '0');
+        pos++;
+      }
+      if (pos == beg || idx < 1 || idx > nAtoms)
+        throw new IllegalArgumentException("Bad /N: layer in AuxInfo");
+      numbers[idx - 1] = ++num;
+      if (pos < len && (aux.charAt(pos) == ',' || aux.charAt(pos) == ';'))
+        pos++;
+    }
+  }
+
+  /**
+   * Symmetry classes from the InChI's own equivalence (/E:) layer, atoms in
+   * the same class have the same value. The reconnected (/R:) section is used
+   * when present (-RecMet), otherwise the main section is only used if InChI
+   * did not disconnect anything, in the standard InChI metals are
+   * disconnected so the main layer's classes are not those of the input
+   * structure. Note InChI's equivalence includes mobile-H (tautomeric)
+   * equivalence.
+   *
+   * @param aux the AuxInfo
+   * @param mol the molecule the AuxInfo was generated for
+   * @return the symmetry classes, or null if they could not be determined
+   */
+  static long[] symmetry(String aux, IAtomContainer mol) {
+    if (aux == null)
+      return null;
+
+    int     beg         = aux.indexOf("/R:/");
+    boolean reconnected = beg >= 0;
+    int     pos         = aux.indexOf("/N:", reconnected ? beg : 0);
+    if (pos < 0)
+      return null;
+    pos += 3;
+
+    // canonical order of each component, every atom must be present (i.e.
+    // no explicit hydrogens that InChI removed), atoms in canonical order
+    // with the offset of each component
+    int    nAtoms = mol.getAtomCount();
+    int    len    = aux.length();
+    long[] sym    = new long[nAtoms];
+    int[]  atoms  = new int[nAtoms];
+    int[]  comps  = new int[nAtoms + 1];
+    int    nComps = 0;
+    int    n      = 0;
+    Arrays.fill(sym, -1);
+    comps[nComps++] = 0;
+    while (pos < len && aux.charAt(pos) != '/') {
+      char c = aux.charAt(pos);
+      if (c == ';') {
+        if (nComps == comps.length || n == comps[nComps - 1])
+          return null;
+        comps[nComps++] = n;
+        pos++;
+        continue;
+      }
+      if (c == ',') {
+        pos++;
+        continue;
+      }
+      int idx = 0;
+      int end = pos;
+      while (end < len && (c = aux.charAt(end)) >= '0' && c <= '9') {
+        idx = 10 * idx + (c - '0');
+        end++;
+      }
+      if (end == pos)
+        return null;
+      pos = end;
+      idx--;
+      if (idx < 0 || idx >= nAtoms || sym[idx] >= 0)
+        return null;
+      sym[idx] = idx;
+      atoms[n++] = idx;
+    }
+    if (n != nAtoms || n == comps[nComps - 1])
+      return null;
+    if (!reconnected && nComps != countComponents(mol))
+      return null;
+
+    // equivalence classes per component, e.g. ";;3*(2,3)(4,5)" for each
+    // group we use the lowest atom index as the class
+    if (!aux.startsWith("/E:", pos))
+      return sym;
+    pos += 3;
+    int comp = 0;
+    while (pos < len && aux.charAt(pos) != '/') {
+      // optional multiplier, the classes apply to the next 'mult' components
+      int mult = 1;
+      int end  = pos;
+      char c;
+      while (end < len && (c = aux.charAt(end)) >= '0' && c <= '9')
+        end++;
+      if (end != pos) {
+        if (end == len || aux.charAt(end) != '*')
+          return null;
+        mult = parseInt(aux, pos, end);
+        pos = end + 1;
+      }
+      int groups = pos;
+      for (int m = 0; m < mult; m++, comp++) {
+        if (comp >= nComps)
+          return null;
+        pos = groups;
+        int off  = comps[comp];
+        int size = (comp + 1 < nComps ? comps[comp + 1] : n) - off;
+        while (pos < len && aux.charAt(pos) == '(') {
+          int close = aux.indexOf(')', pos);
+          if (close < 0 || close == pos + 1)
+            return null;
+          // trailing empty members are ignored (as String.split)
+          int last = close;
+          while (last > pos + 1 && aux.charAt(last - 1) == ',')
+            last--;
+          // two passes over the members, the lowest index then assign
+          long cls = Long.MAX_VALUE;
+          for (int p = pos + 1; p < last; ) {
+            int q = nextMember(aux, p, last);
+            int member = parseInt(aux, p, q) - 1;
+            if (member < 0 || member >= size)
+              return null;
+            cls = Math.min(cls, atoms[off + member]);
+            p = q + 1;
+          }
+          for (int p = pos + 1; p < last; ) {
+            int q = nextMember(aux, p, last);
+            sym[atoms[off + parseInt(aux, p, q) - 1]] = cls;
+            p = q + 1;
+          }
+          pos = close + 1;
+        }
+      }
+      if (pos < len && aux.charAt(pos) == ';')
+        pos++;
+      else if (pos < len && aux.charAt(pos) != '/')
+        return null;
+    }
+    return sym;
+  }
+
+  private static int nextMember(String str, int beg, int end) {
+    int pos = str.indexOf(',', beg);
+    return pos < 0 || pos > end ? end : pos;
+  }
+
+  // a non-negative decimal in str[beg, end), -1 if empty or not a number
+  private static int parseInt(String str, int beg, int end) {
+    if (beg == end)
+      return -1;
+    int num = 0;
+    for (int i = beg; i < end; i++) {
+      char c = str.charAt(i);
+      if (c < '0' || c > '9')
+        return -1;
+      num = 10 * num + (c - '0');
+    }
+    return num;
+  }
+
+  private static int countComponents(IAtomContainer mol) {
+    int[] parent = new int[mol.getAtomCount()];
+    for (int i = 0; i < parent.length; i++)
+      parent[i] = i;
+    int count = parent.length;
+    for (IBond bond : mol.bonds()) {
+      int a = find(parent, bond.getBegin().getIndex());
+      int b = find(parent, bond.getEnd().getIndex());
+      if (a != b) {
+        parent[a] = b;
+        count--;
+      }
+    }
+    return count;
+  }
+
+  private static int find(int[] parent, int x) {
+    while (parent[x] != x)
+      x = parent[x] = parent[parent[x]];
+    return x;
+  }
+}
@@ -0,0 +1,290 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.stereo.StereoTool;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Perceive the square planar, trigonal bipyramidal and octahedral centres of
+ * many conformers of a molecule at once. The candidate centres and their
+ * neighbors are found once from the connection table, the coordinates of
+ * all the conformers are then given as packed arrays (structure of arrays)
+ * with the conformers of an atom contiguous:
+ * <pre>
+ * x[atom * nConformers + conformer]
+ * </pre>
+ * Each centre is first screened over all conformers in simple branch free
+ * loops (coplanar neighbors, or an axis of two neighbors colinear with the
+ * centre) that the JIT can unroll and vectorise, only the conformers that
+ * pass are classified in full. The result for each centre and conformer
+ * is a compact int code that can be decoded with {@link #geometry},
+ * {@link #config} and {@link #carrier}, or attached to the molecule with
+ * {@link #apply}. The classification is the same as
+ * {@link PerceiveFrom3d#perceive(IAtomContainer, BitSet)} except that only
+ * the first axis of a 5-coordinate centre with two is reported.
+ *
+ * <pre>
+ * BatchPerceiveFrom3d batch = new BatchPerceiveFrom3d(mol);
+ * int[] codes = new int[batch.centreCount() * nConformers];
+ * batch.perceive(x, y, z, nConformers, codes);
+ * batch.apply(mol, codes, nConformers, 0); // stereo of the first conformer
+ * </pre>
+ */
+public final class BatchPerceiveFrom3d {
+
+  public static final int NONE                 = Geometry3d.NONE;
+  public static final int SQUARE_PLANAR        = Geometry3d.SQUARE_PLANAR;
+  public static final int TRIGONAL_BIPYRAMIDAL = Geometry3d.TRIGONAL_BIPYRAMIDAL;
+  public static final int OCTAHEDRAL           = Geometry3d.OCTAHEDRAL;
+
+  private final int   nAtoms;
+  private final int[] centres;
+  private final int[] degree;
+  private final int[] nbrs; // 6 per centre, in bond order
+
+  /**
+   * Find the candidate centres of a molecule, the default candidate elements
+   * are used.
+   *
+   * @param mol the molecule
+   * @see PerceiveFrom3d#defaultCandidates()
+   */
+  public BatchPerceiveFrom3d(IAtomContainer mol) {
+    this(mol, PerceiveFrom3d.defaultCandidates());
+  }
+
+  /**
+   * Find the candidate centres of a molecule.
+   *
+   * @param mol        the molecule
+   * @param candidates atomic numbers of the elements to test, null for all
+   */
+  public BatchPerceiveFrom3d(IAtomContainer mol, BitSet candidates) {
+    this.nAtoms = mol.getAtomCount();
+    int n = 0;
+    int[] centres = new int[nAtoms];
+    int[] degree  = new int[nAtoms];
+    int[] nbrs    = new int[6 * nAtoms];
+    for (IAtom atom : mol.atoms()) {
+      int deg = atom.getBondCount();
+      if (deg < 4 || deg > 6)
+        continue;
+      if (candidates != null) {
+        Integer elem = atom.getAtomicNumber();
+        if (elem == null || elem < 0 || !candidates.get(elem))
+          continue;
+      }
+      int j = 0;
+      for (IBond bond : atom.bonds())
+        nbrs[6 * n + j++] = mol.indexOf(bond.getOther(atom));
+      centres[n] = mol.indexOf(atom);
+      degree[n] = deg;
+      n++;
+    }
+    this.centres = Arrays.copyOf(centres, n);
+    this.degree = Arrays.copyOf(degree, n);
+    this.nbrs = Arrays.copyOf(nbrs, 6 * n);
+  }
+
+  /**
+   * @return the number of candidate centres
+   */
+  public int centreCount() {
+    return centres.length;
+  }
+
+  /**
+   * @param i the centre
+   * @return the atom index of the centre
+   */
+  public int centre(int i) {
+    return centres[i];
+  }
+
+  /**
+   * The neighbor of a centre that a carrier refers to.
+   *
+   * @param i   the centre
+   * @param nbr the neighbor (0..5), see {@link #carrier}
+   * @return the atom index of the neighbor
+   */
+  public int neighbor(int i, int nbr) {
+    return nbrs[6 * i + nbr];
+  }
+
+  /**
+   * Classify the candidate centres of many conformers. The codes are written
+   * with the conformers of a centre contiguous,
+   * codes[centre * nConformers + conformer].
+   *
+   * @param x           x coordinates, x[atom * nConformers + conformer]
+   * @param y           y coordinates
+   * @param z           z coordinates
+   * @param nConformers the number of conformers
+   * @param codes       the output codes (at least centreCount() * nConformers)
+   */
+  public void perceive(double[] x, double[] y, double[] z, int nConformers, int[] codes) {
+    int size = nAtoms * nConformers;
+    if (x.length < size || y.length < size || z.length < size)
+      throw new IllegalArgumentException("Expected " + size + " coordinates");
+    if (codes.length < centres.length * nConformers)
+      throw new IllegalArgumentException("Expected space for " + centres.length * nConformers + " codes");
+
+    PerceiveFrom3d.Scratch scratch = PerceiveFrom3d.SCRATCH.get();
+    double[]               screen  = new double[nConformers];
+    for (int i = 0; i < centres.length; i++) {
+      int deg   = degree[i];
+      int focus = centres[i] * nConformers;
+      int nbr0  = 6 * i;
+
+      // screen all conformers
+      if (deg == 4) {
+        screenCoplanar(x, y, z, focus,
+                       nbrs[nbr0] * nConformers, nbrs[nbr0 + 1] * nConformers,
+                       nbrs[nbr0 + 2] * nConformers, nbrs[nbr0 + 3] * nConformers,
+                       nConformers, screen);
+      } else {
+        Arrays.fill(screen, Double.POSITIVE_INFINITY);
+        // any pair for a trigonal bipyramid, from the first for an octahedron
+        int nBeg = deg == 5 ? 4 : 1;
+        for (int a = 0; a < nBeg; a++)
+          for (int b = a + 1; b < deg; b++)
+            screenColinear(x, y, z, focus,
+                           nbrs[nbr0 + a] * nConformers, nbrs[nbr0 + b] * nConformers,
+                           nConformers, screen);
+      }
+
+      // classify the conformers that pass
+      double   tol = deg == 4 ? StereoTool.PLANE_TOLERANCE : StereoTool.MIN_COLINEAR_NORMAL;
+      double[] xyz = scratch.xyz;
+      for (int c = 0; c < nConformers; c++) {
+        int code = NONE;
+        if (screen[c] < tol) {
+          xyz[0] = x[focus + c];
+          xyz[1] = y[focus + c];
+          xyz[2] = z[focus + c];
+          for (int j = 0; j < deg; j++) {
+            int k = nbrs[nbr0 + j] * nConformers + c;
+            xyz[3 * j + 3] = x[k];
+            xyz[3 * j + 4] = y[k];
+            xyz[3 * j + 5] = z[k];
+          }
+          switch (deg) {
+            case 4:
+              code = Geometry3d.squarePlanar(xyz, scratch.idx, scratch.normals);
+              break;
+            case 5:
+              code = Geometry3d.trigonalBipyramidal(xyz, scratch.idx, 1);
+              break;
+            case 6:
+              code = Geometry3d.octahedral(xyz, scratch.idx, scratch.normals);
+              break;
+          }
+        }
+        codes[i * nConformers + c] = code;
+      }
+    }
+  }
+
+  /**
+   * Add the stereo elements of one conformer to the molecule (the one the
+   * centres were found from, or one with the same atom and bond order).
+   *
+   * @param mol         the molecule
+   * @param codes       the codes from {@link #perceive}
+   * @param nConformers the number of conformers
+   * @param conformer   the conformer
+   */
+  public void apply(IAtomContainer mol, int[] codes, int nConformers, int conformer) {
+    IAtom[] nbrAtoms = new IAtom[6];
+    for (int i = 0; i < centres.length; i++) {
+      int code = codes[i * nConformers + conformer];
+      if (code == NONE)
+        continue;
+      for (int j = 0; j < degree[i]; j++)
+        nbrAtoms[j] = mol.getAtom(nbrs[6 * i + j]);
+      mol.addStereoElement(PerceiveFrom3d.toStereo(mol.getAtom(centres[i]), nbrAtoms, code));
+    }
+  }
+
+  /**
+   * @param code a code
+   * @return the geometry, {@link #NONE}, {@link #SQUARE_PLANAR},
+   *         {@link #TRIGONAL_BIPYRAMIDAL} or {@link #OCTAHEDRAL}
+   */
+  public static int geometry(int code) {
+    return Geometry3d.geometry(code);
+  }
+
+  /**
+   * @param code a code
+   * @return the configuration, the CDK order of a trigonal bipyramidal or
+   *         octahedral (1 or 2) and the shape of a square planar
+   *         (1=U, 2=4, 3=Z)
+   */
+  public static int config(int code) {
+    return Geometry3d.config(code);
+  }
+
+  /**
+   * @param code a code
+   * @param pos  the carrier position
+   * @return the neighbor (0..5) of the centre at the carrier position, see
+   *         {@link #neighbor}
+   */
+  public static int carrier(int code, int pos) {
+    return Geometry3d.carrier(code, pos);
+  }
+
+  // the largest signed distance of the neighbors to the plane (normal of
+  // a, b, c) through the focus, as Geometry3d.allCoplanar
+  private static void screenCoplanar(double[] x, double[] y, double[] z,
+                                     int f, int a, int b, int c, int d,
+                                     int n, double[] out) {
+    for (int i = 0; i < n; i++) {
+      double abx  = x[b + i] - x[a + i], aby = y[b + i] - y[a + i], abz = z[b + i] - z[a + i];
+      double acx  = x[c + i] - x[a + i], acy = y[c + i] - y[a + i], acz = z[c + i] - z[a + i];
+      double nx   = aby * acz - abz * acy;
+      double ny   = acx * abz - acz * abx;
+      double nz   = abx * acy - aby * acx;
+      double norm = 1.0 / Math.sqrt(nx * nx + ny * ny + nz * nz);
+      nx *= norm;
+      ny *= norm;
+      nz *= norm;
+      double fx = x[f + i], fy = y[f + i], fz = z[f + i];
+      double da = nx * (x[a + i] - fx) + ny * (y[a + i] - fy) + nz * (z[a + i] - fz);
+      double db = nx * (x[b + i] - fx) + ny * (y[b + i] - fy) + nz * (z[b + i] - fz);
+      double dc = nx * (x[c + i] - fx) + ny * (y[c + i] - fy) + nz * (z[c + i] - fz);
+      double dd = nx * (x[d + i] - fx) + ny * (y[d + i] - fy) + nz * (z[d + i] - fz);
+      // Math.max keeps NaN (not coplanar)
+      out[i] = Math.max(Math.max(da, db), Math.max(dc, dd));
+    }
+  }
+
+  // the smallest colinear normal (a, focus, b) so far, as
+  // Geometry3d.isColinear
+  private static void screenColinear(double[] x, double[] y, double[] z,
+                                     int f, int a, int b,
+                                     int n, double[] out) {
+    for (int i = 0; i < n; i++) {
+      double abx = x[f + i] - x[a + i], aby = y[f + i] - y[a + i], abz = z[f + i] - z[a + i];
+      double acx = x[b + i] - x[a + i], acy = y[b + i] - y[a + i], acz = z[b + i] - z[a + i];
+      double nx  = aby * acz - abz * acy;
+      double ny  = acx * abz - acz * abx;
+      double nz  = abx * acy - aby * acx;
+      double len = Math.sqrt(nx * nx + ny * ny + nz * nz);
+      // not Math.min, a NaN pair must not hide another
+      out[i] = len < out[i] ? len : out[i];
+    }
+  }
+}
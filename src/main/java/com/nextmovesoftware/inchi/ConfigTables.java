@@ -291,4 +291,54 @@ public class ConfigTables {
           E, A, F, B, D, C, E, B, D, A, F, C, E, D, A, F, B, C, E, F, B, D, A, C,
           F, A, C, B, E, D, F, B, E, A, C, D, F, C, B, E, A, D, F, E, A, C, B, D}
   };
+
+  /**
+   * The tables above "compiled" to a direct index, the order (1-based) of a
+   * permutation is found at its rank, see {@link #rank(int[])}.
+   */
+  static final int[] SP_ORDERS   = index(SP, 4);
+  static final int[] TBPY_ORDERS = index(TBPY, 5);
+  static final int[] OC_ORDERS   = index(OC, 6);
+
+  /**
+   * The rank of a permutation of 0..n-1 in lexicographic order (the Lehmer
+   * code read as a factorial base number). Each digit is the number of
+   * smaller values not yet used which is counted from a bit set of used
+   * values.
+   *
+   * @param perm permutation of 0..n-1 (n &lt; 32)
+   * @return the rank, 0..n!-1
+   */
+  static int rank(int[] perm) {
+    int rank = 0;
+    int used = 0;
+    for (int i = 0; i < perm.length; i++) {
+      int x = perm[i];
+      rank = rank * (perm.length - i) + Integer.bitCount(~used & ((1 << x) - 1));
+      used |= 1 << x;
+    }
+    return rank;
+  }
+
+  private static int[] index(int[][] table, int n) {
+    int size = 1;
+    for (int i = 2; i <= n; i++)
+      size *= i;
+    int[] orders = new int[size];
+    int[] perm   = new int[n];
+    for (int i = 0; i < table.length; i++) {
+      for (int j = 0; j < table[i].length; j += n) {
+        System.arraycopy(table[i], j, perm, 0, n);
+        int r = rank(perm);
+        if (orders[r] != 0)
+          throw new IllegalStateException("Configuration table has a permutation more than once");
+        orders[r] = i + 1;
+      }
+    }
+    for (int order : orders) {
+      if (order == 0)
+        throw new IllegalStateException("Configuration table does not cover all permutations");
+    }
+    return orders;
+  }
 }
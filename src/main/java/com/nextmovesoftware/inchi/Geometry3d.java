@@ -0,0 +1,346 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.stereo.StereoTool;
+
+import javax.vecmath.Point3d;
+
+/**
+ * Geometry tests for perceiving stereo from 3D coordinates that work on
+ * points packed into a double[] (point i is xyz[3i..3i+2]) so no vectors or
+ * arrays are allocated. The arithmetic and tolerances are the same as
+ * {@link StereoTool} so the results are identical.
+ *
+ * <p>A centre (point 0) and its neighbors (points 1..n) are classified into
+ * a compact int code: the geometry (bits 0-1), the configuration (bits 2-3)
+ * and the carriers, the neighbor index (0..5) of each carrier in 3 bits from
+ * bit 4.</p>
+ */
+final class Geometry3d {
+
+  static final int NONE                 = 0;
+  static final int SQUARE_PLANAR        = 1;
+  static final int TRIGONAL_BIPYRAMIDAL = 2;
+  static final int OCTAHEDRAL           = 3;
+
+  // square planar configurations
+  static final int U_SHAPE    = 1;
+  static final int FOUR_SHAPE = 2;
+  static final int Z_SHAPE    = 3;
+
+  private Geometry3d() {
+  }
+
+  static int geometry(int code) {
+    return code & 0x3;
+  }
+
+  static int config(int code) {
+    return (code >>> 2) & 0x3;
+  }
+
+  static int carrier(int code, int pos) {
+    return (code >>> (4 + 3 * pos)) & 0x7;
+  }
+
+  // set the carrier at a position of a code, given as a point (1..n)
+  private static int carrier(int code, int pos, int point) {
+    return code | (point - 1) << (4 + 3 * pos);
+  }
+
+  /**
+   * Load the coordinates of an atom (point 0) and its neighbors (points
+   * 1..n), the neighbors are stored in bond order.
+   *
+   * @param focus the atom
+   * @param nbrs  the neighbors (output)
+   * @param xyz   the coordinates (output)
+   * @return the coordinates were loaded, false if any are missing
+   */
+  static boolean load(IAtom focus, IAtom[] nbrs, double[] xyz) {
+    Point3d p = focus.getPoint3d();
+    if (p == null)
+      return false;
+    xyz[0] = p.x;
+    xyz[1] = p.y;
+    xyz[2] = p.z;
+    int n = 0;
+    for (IBond bond : focus.bonds()) {
+      IAtom nbr = bond.getOther(focus);
+      if ((p = nbr.getPoint3d()) == null)
+        return false;
+      nbrs[n++] = nbr;
+      xyz[3 * n] = p.x;
+      xyz[3 * n + 1] = p.y;
+      xyz[3 * n + 2] = p.z;
+    }
+    return true;
+  }
+
+  /**
+   * Are three points on a line, as StereoTool.isColinear(a, b, c).
+   *
+   * @param xyz the coordinates
+   * @param a   point a
+   * @param b   point b
+   * @param c   point c
+   * @return the points are colinear
+   */
+  static boolean isColinear(double[] xyz, int a, int b, int c) {
+    a *= 3;
+    b *= 3;
+    c *= 3;
+    double abx = xyz[b] - xyz[a], aby = xyz[b + 1] - xyz[a + 1], abz = xyz[b + 2] - xyz[a + 2];
+    double acx = xyz[c] - xyz[a], acy = xyz[c + 1] - xyz[a + 1], acz = xyz[c + 2] - xyz[a + 2];
+    double x   = aby * acz - abz * acy;
+    double y   = acx * abz - acz * abx;
+    double z   = abx * acy - aby * acx;
+    return Math.sqrt(x * x + y * y + z * z) < StereoTool.MIN_COLINEAR_NORMAL;
+  }
+
+  /**
+   * Are some points on (or below) the plane with the normal of a, b, c
+   * through another point, as
+   * StereoTool.allCoplanar(StereoTool.getNormal(a, b, c), focus, points...).
+   *
+   * @param xyz    the coordinates
+   * @param a      point a
+   * @param b      point b
+   * @param c      point c
+   * @param focus  point in the plane
+   * @param points the points to test
+   * @param n      the number of points to test
+   * @return the points are coplanar
+   */
+  static boolean allCoplanar(double[] xyz, int a, int b, int c, int focus, int[] points, int n) {
+    a *= 3;
+    b *= 3;
+    c *= 3;
+    focus *= 3;
+    double abx  = xyz[b] - xyz[a], aby = xyz[b + 1] - xyz[a + 1], abz = xyz[b + 2] - xyz[a + 2];
+    double acx  = xyz[c] - xyz[a], acy = xyz[c + 1] - xyz[a + 1], acz = xyz[c + 2] - xyz[a + 2];
+    double x    = aby * acz - abz * acy;
+    double y    = acx * abz - acz * abx;
+    double z    = abx * acy - aby * acx;
+    double norm = 1.0 / Math.sqrt(x * x + y * y + z * z);
+    x *= norm;
+    y *= norm;
+    z *= norm;
+    for (int i = 0; i < n; i++) {
+      int    p    = 3 * points[i];
+      double dist = x * (xyz[p] - xyz[focus]) + y * (xyz[p + 1] - xyz[focus + 1]) + z * (xyz[p + 2] - xyz[focus + 2]);
+      if (!(dist < StereoTool.PLANE_TOLERANCE))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * 3x3 determinant helper for a constant third column
+   */
+  private static double det(double xa, double ya, double xb, double yb,
+                            double xc, double yc) {
+    return (xa - xc) * (yb - yc) - (ya - yc) * (xb - xc);
+  }
+
+  /**
+   * The sign of the volume of the tetrahedron a, b, c, d.
+   *
+   * @param xyz the coordinates
+   * @param a   point a
+   * @param b   point b
+   * @param c   point c
+   * @param d   point d
+   * @return -1, 0, or +1
+   */
+  static int signedVolume(double[] xyz, int a, int b, int c, int d) {
+    a *= 3;
+    b *= 3;
+    c *= 3;
+    d *= 3;
+    double x1 = xyz[a], y1 = xyz[a + 1], z1 = xyz[a + 2];
+    double x2 = xyz[b], y2 = xyz[b + 1], z2 = xyz[b + 2];
+    double x3 = xyz[c], y3 = xyz[c + 1], z3 = xyz[c + 2];
+    double x4 = xyz[d], y4 = xyz[d + 1], z4 = xyz[d + 2];
+
+    double det = (z1 * det(x2, y2, x3, y3, x4, y4)) - (z2 * det(x1, y1, x3, y3, x4, y4))
+                 + (z3 * det(x1, y1, x2, y2, x4, y4)) - (z4 * det(x1, y1, x2, y2, x3, y3));
+
+    return (int) Math.signum(det);
+  }
+
+  // the unit normal of the plane a, b, c into out[off..off+2]
+  private static void normal(double[] xyz, int a, int b, int c, double[] out, int off) {
+    a *= 3;
+    b *= 3;
+    c *= 3;
+    double abx  = xyz[b] - xyz[a], aby = xyz[b + 1] - xyz[a + 1], abz = xyz[b + 2] - xyz[a + 2];
+    double acx  = xyz[c] - xyz[a], acy = xyz[c + 1] - xyz[a + 1], acz = xyz[c + 2] - xyz[a + 2];
+    double x    = aby * acz - abz * acy;
+    double y    = acx * abz - acz * abx;
+    double z    = abx * acy - aby * acx;
+    double norm = 1.0 / Math.sqrt(x * x + y * y + z * z);
+    out[off] = x * norm;
+    out[off + 1] = y * norm;
+    out[off + 2] = z * norm;
+  }
+
+  /**
+   * The shape traced by four points of a square planar arrangement, as
+   * StereoTool.getSquarePlanarShape(a, b, c, d).
+   *
+   * @param xyz     the coordinates
+   * @param a       point a
+   * @param b       point b
+   * @param c       point c
+   * @param d       point d
+   * @param normals scratch space for 9 values
+   * @return the shape, {@link #U_SHAPE}, {@link #FOUR_SHAPE} or {@link #Z_SHAPE}
+   */
+  static int squarePlanarShape(double[] xyz, int a, int b, int c, int d, double[] normals) {
+    normal(xyz, a, b, c, normals, 0);
+    normal(xyz, b, c, d, normals, 3);
+    normal(xyz, c, d, a, normals, 6);
+    double aDotB = normals[0] * normals[3] + normals[1] * normals[4] + normals[2] * normals[5];
+    double aDotC = normals[0] * normals[6] + normals[1] * normals[7] + normals[2] * normals[8];
+    double bDotC = normals[3] * normals[6] + normals[4] * normals[7] + normals[5] * normals[8];
+    if (aDotB > 0 && aDotC > 0 && bDotC > 0)
+      return U_SHAPE;
+    if (aDotB > 0 && aDotC < 0 && bDotC < 0)
+      return FOUR_SHAPE;
+    return Z_SHAPE;
+  }
+
+  /**
+   * Classify a 4-coordinate centre as square planar.
+   *
+   * @param xyz     the centre (point 0) and neighbors (points 1..4)
+   * @param idx     scratch space for 4 values
+   * @param normals scratch space for 9 values
+   * @return the code, {@link #NONE} if not square planar
+   */
+  static int squarePlanar(double[] xyz, int[] idx, double[] normals) {
+    // need to check if all on a plane...
+    idx[0] = 1;
+    idx[1] = 2;
+    idx[2] = 3;
+    idx[3] = 4;
+    if (!allCoplanar(xyz, 1, 2, 3, 0, idx, 4))
+      return NONE;
+    int code = SQUARE_PLANAR | squarePlanarShape(xyz, 1, 2, 3, 4, normals) << 2;
+    for (int pos = 0; pos < 4; pos++)
+      code = carrier(code, pos, pos + 1);
+    return code;
+  }
+
+  /**
+   * Classify a 5-coordinate centre as trigonal bipyramidal. The axis is the
+   * first pair of neighbors colinear with the centre, the search starts at
+   * the given neighbor so further axes can be found.
+   *
+   * @param xyz     the centre (point 0) and neighbors (points 1..5)
+   * @param idx     scratch space for 4 values
+   * @param axisBeg the first point to look for an axis from (1..5)
+   * @return the code, {@link #NONE} if not trigonal bipyramidal
+   */
+  static int trigonalBipyramidal(double[] xyz, int[] idx, int axisBeg) {
+    for (; axisBeg <= 5; axisBeg++) {
+      for (int axisEnd = axisBeg + 1; axisEnd <= 5; axisEnd++) {
+
+        // axis: axisBeg -> axisEnd
+        if (!isColinear(xyz, axisBeg, 0, axisEnd))
+          continue;
+
+        int n = 0;
+        for (int j = 1; j <= 5; j++) {
+          if (axisEnd == j || axisBeg == j)
+            continue;
+          idx[n++] = j;
+        }
+
+        if (!allCoplanar(xyz, idx[0], idx[1], idx[2], 0, idx, 3))
+          return NONE;
+
+        // TODO (jwm) need to double check this
+        // when viewed along the axis we need to know if we're anti-clockwise
+        // (@) or clockwise (@@): @ => 1, @@ => 2. We do this by computing the
+        // signed volume of the tetrahedral formed of first atom of the axis,
+        // the focus and the first two equatorial neighbors
+        int sign  = signedVolume(xyz, axisEnd, 0, idx[0], idx[1]);
+        int order = sign < 0 ? 2 : 1;
+        int code  = TRIGONAL_BIPYRAMIDAL | order << 2;
+        code = carrier(code, 0, axisBeg);
+        for (int pos = 0; pos < 3; pos++)
+          code = carrier(code, pos + 1, idx[pos]);
+        return carrier(code, 4, axisEnd);
+      }
+    }
+    return NONE;
+  }
+
+  /**
+   * Classify a 6-coordinate centre as octahedral, the axis is from the first
+   * neighbor.
+   *
+   * @param xyz     the centre (point 0) and neighbors (points 1..6)
+   * @param idx     scratch space for 4 values
+   * @param normals scratch space for 9 values
+   * @return the code, {@link #NONE} if not octahedral
+   */
+  static int octahedral(double[] xyz, int[] idx, double[] normals) {
+    for (int i = 2; i <= 6; i++) {
+      // find axis
+      if (!isColinear(xyz, 1, 0, i))
+        continue;
+
+      int n = 0;
+      for (int j = 2; j <= 6; j++) {
+        if (i == j)
+          continue;
+        idx[n++] = j;
+      }
+
+      if (!allCoplanar(xyz, idx[0], idx[1], idx[2], 0, idx, 4))
+        return NONE;
+
+      // "unwind" the configuration such that we get a "U" shapre
+      //  4 shape -> we swap the middle 2 i.e. idxs=1,2
+      //  Z shape -> we swap the first two (or last two) i.e. idxs=0,1
+      switch (squarePlanarShape(xyz, idx[0], idx[1], idx[2], idx[3], normals)) {
+        case FOUR_SHAPE:
+          swap(idx, 1, 2);
+          break;
+        case Z_SHAPE:
+          swap(idx, 0, 1);
+          break;
+      }
+
+      // TODO (jwm) need to double check this
+      // when viewed along the axis we need to know if we're anti-clockwise
+      // (@) or clockwise (@@): @ => 1, @@ => 2. We do this by computing the
+      // signed volume of the tetrahedral formed of first atom of the axis,
+      // the focus and the first two equatorial neighbors
+      int sign  = signedVolume(xyz, 1, 0, idx[0], idx[1]);
+      int order = sign < 0 ? 2 : 1;
+      int code  = OCTAHEDRAL | order << 2;
+      code = carrier(code, 0, 1);
+      for (int pos = 0; pos < 4; pos++)
+        code = carrier(code, pos + 1, idx[pos]);
+      return carrier(code, 5, i);
+    }
+    return NONE;
+  }
+
+  private static void swap(int[] idx, int i, int j) {
+    int tmp = idx[i];
+    idx[i] = idx[j];
+    idx[j] = tmp;
+  }
+}
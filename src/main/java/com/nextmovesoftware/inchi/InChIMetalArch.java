@@ -6,13 +6,11 @@
 
 package com.nextmovesoftware.inchi;
 
-import com.google.common.collect.FluentIterable;
 import net.sf.jniinchi.INCHI_OPTION;
 import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.exception.InvalidSmilesException;
 import org.openscience.cdk.graph.GraphUtil;
 import org.openscience.cdk.graph.invariant.Canon;
-import org.openscience.cdk.graph.invariant.InChINumbersTools;
 import org.openscience.cdk.inchi.InChIGenerator;
 import org.openscience.cdk.inchi.InChIGeneratorFactory;
 import org.openscience.cdk.interfaces.IAtom;
@@ -25,19 +23,44 @@ import org.openscience.cdk.stereo.Octahedral;
 import org.openscience.cdk.stereo.SquarePlanar;
 import org.openscience.cdk.stereo.TrigonalBipyramidal;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
+/**
+ * Generates InChIs with an additional '/ma' (metal architecture) layer that
+ * distinguishes Square Planar, Trigonal Bipyramidal, and Octahedral
+ * configurations.
+ *
+ * <p>Once configured, instances are thread-safe and a single engine can (and
+ * should) be shared between threads. Resources that are not thread-safe are
+ * never shared: SMILES parsers are held per thread and an InChI generator is
+ * created for each call. Be aware that JNI-InChI serialises all calls into
+ * the native InChI library so that part of the work does not run
+ * concurrently.</p>
+ *
+ * <pre>{@code
+ * InChIMetalArch engine = new InChIMetalArch(opts);
+ * String inchi = engine.generate("Cl[Pt@SP1](Cl)([NH3])[NH3]");
+ * }</pre>
+ */
 public final class InChIMetalArch {
 
-  private final static IChemObjectBuilder    bldr   = SilentChemObjectBuilder.getInstance();
-  private final static SmilesParser          smipar = new SmilesParser(bldr);
-  private final static InChIGeneratorFactory inchifact;
+  private final static IChemObjectBuilder       bldr   = SilentChemObjectBuilder.getInstance();
+  private final static ThreadLocal<SmilesParser> smipar = new ThreadLocal<SmilesParser>() {
+    @Override
+    protected SmilesParser initialValue() {
+      return new SmilesParser(bldr);
+    }
+  };
+  private final static InChIGeneratorFactory    inchifact;
 
   static {
     try {
@@ -47,20 +70,174 @@ public final class InChIMetalArch {
     }
   }
 
+  // the best (minimum) order for each rank pattern built in getConfigNum(),
+  // there are few distinct patterns so these are filled lazily and shared,
+  // a pattern is encoded as a base-n number and 0 means not computed yet
+  final static AtomicIntegerArray SP_MEMO   = new AtomicIntegerArray(4 * 4 * 4 * 4);
+  final static AtomicIntegerArray TBPY_MEMO = new AtomicIntegerArray(5 * 5 * 5 * 5 * 5);
+  final static AtomicIntegerArray OC_MEMO   = new AtomicIntegerArray(6 * 6 * 6 * 6 * 6 * 6);
+
+  /**
+   * Per-thread working space for the '/ma' layer, the carriers of a centre
+   * and the metal geometries of a molecule being ordered.
+   */
+  private static final class Scratch {
+    private final int[]            atoms   = new int[6];
+    private final int[]            order   = new int[6];
+    private final int[][]          perms   = new int[7][];
+    private       IStereoElement[] stereos = new IStereoElement[8];
+    private       long[]           keys    = new long[8];
+    private       int[]            configs = new int[8];
+    private final StringBuilder    sb      = new StringBuilder(256);
+
+    private Scratch() {
+      // the rank patterns, by number of carriers
+      for (int i = 0; i < perms.length; i++)
+        perms[i] = new int[i];
+    }
+  }
+
+  private final static ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
+  /**
+   * The backtracking search for a configuration number ran out of leaves.
+   */
+  static final class LeafLimitException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    LeafLimitException() {
+      super("Exceeded the backtracking leaf limit");
+    }
+  }
+
+  /**
+   * The InChI and the AuxInfo derived numbering/symmetry for a structure,
+   * none of these depend on the metal geometry.
+   */
+  private static final class Layers {
+    private final String inchi;
+    private final int[]  numbers;
+    private final long[] sym;
+
+    private Layers(String inchi, int[] numbers, long[] sym) {
+      this.inchi = inchi;
+      this.numbers = numbers;
+      this.sym = sym;
+    }
+  }
+
+  private final List<INCHI_OPTION>       opts;
+  private       boolean                  auxInfoSymmetry = false;
+  private       LruCache<String, Layers> layerCache;
+  private       Stats                    stats;
+  private       int                      maxLeaves       = 0;
+
+  /**
+   * Create an engine that generates standard InChIs.
+   */
+  public InChIMetalArch() {
+    this(Collections.<INCHI_OPTION>emptyList());
+  }
+
+  /**
+   * Create an engine that generates InChIs with the provided options.
+   *
+   * @param opts InChI options
+   */
+  public InChIMetalArch(List<INCHI_OPTION> opts) {
+    this.opts = Collections.unmodifiableList(new ArrayList<>(opts));
+  }
+
+  /**
+   * Take the symmetry classes of the carriers from the InChI's equivalence
+   * (/E:) layer in the AuxInfo rather than a second canonical refinement with
+   * {@link Canon#symmetry}. For the standard InChI metals are disconnected so
+   * the AuxInfo only provides classes for the input structure with the
+   * -RecMet option (or when nothing was disconnected), in other cases this
+   * falls back to {@link Canon#symmetry}. InChI's equivalence classes also
+   * include mobile-H equivalence and so may be coarser than
+   * {@link Canon#symmetry} for tautomeric ligands.
+   *
+   * @param enabled use the AuxInfo symmetry classes
+   */
+  public void setAuxInfoSymmetry(boolean enabled) {
+    this.auxInfoSymmetry = enabled;
+  }
+
+  /**
+   * Cache the InChI, numbering and symmetry classes of the most recently
+   * seen structures. Entries are keyed on the structure without its metal
+   * geometry (which InChI does not see) so metal stereoisomers of the same
+   * structure, for example an enumerated library, only need one native InChI
+   * call. The key is for the input atom order and includes coordinates.
+   *
+   * @param size maximum number of structures to cache, 0 to disable
+   */
+  public void setInChICacheSize(int size) {
+    this.layerCache = size > 0 ? new LruCache<String, Layers>(size) : null;
+  }
+
+  /**
+   * Limit the work of the backtracking search for the lowest configuration
+   * number of a centre with symmetric carriers. The search is over the
+   * leaves (permutations) that break the ties and is memoized per rank
+   * pattern, there are at most 720 for an octahedral centre. A molecule with
+   * a centre that exceeds the limit is not generated (an error is reported).
+   *
+   * @param max maximum leaves per centre, 0 for no limit
+   */
+  public void setMaxLeaves(int max) {
+    this.maxLeaves = Math.max(0, max);
+  }
+
+  /**
+   * Record the time spent in each stage of generation.
+   *
+   * @param stats where to record timings, null to disable
+   */
+  void setStats(Stats stats) {
+    this.stats = stats;
+  }
+
   /**
    * This would normally be done as part of the Canonical labelling algorithm.
    * In McKay's algorithm (which InChI is based) ties are split by backtracking,
    * he we re-do the backtracking using our symetry partition defined
    * permutation.
    *
-   * @param table the permutation table for this configuration class
-   * @param perm  the permutation
-   * @param best  the best index found so far
+   * @param orders the permutation index for this configuration class, see
+   *               {@link ConfigTables#rank(int[])}
+   * @param perm   the permutation
+   * @param best   the best index found so far
+   * @return the best index
+   */
+  static int findByBacktrack(int[] orders,
+                             int[] perm,
+                             int best) {
+    return findByBacktrack(orders, perm, best, null);
+  }
+
+  /**
+   * {@link #findByBacktrack(int[], int[], int)} with a budget of leaves
+   * (permutations looked up), this is counted down and the search is
+   * abandoned if it runs out.
+   *
+   * @param orders the permutation index for this configuration class
+   * @param perm   the permutation
+   * @param best   the best index found so far
+   * @param leaves the remaining leaves (in leaves[0]), null for no limit
    * @return the best index
+   * @throws LeafLimitException the budget ran out
    */
-  private static int findByBacktrack(int[][] table,
-                                     int[] perm,
-                                     int best) {
+  static int findByBacktrack(int[] orders,
+                             int[] perm,
+                             int best,
+                             int[] leaves) {
     int tmp;
     for (int i = 0; i < perm.length; i++) {
       int numSym = 0;
@@ -75,7 +252,7 @@ public final class InChIMetalArch {
               if (k != j && copy[k] == i)
                 copy[k] = i + 1;
             }
-            tmp = findByBacktrack(table, copy, best);
+            tmp = findByBacktrack(orders, copy, best, leaves);
             if (tmp < best)
               best = tmp;
           }
@@ -83,139 +260,668 @@ public final class InChIMetalArch {
         return best;
       }
     }
-    for (int i = 0; i < table.length; i++) {
-      int[] subtable = table[i];
-      for (int j = 0; j < subtable.length; j += perm.length) {
-        boolean found = true;
-        for (int k = 0; k < perm.length; k++)
-          if (subtable[j + k] != perm[k]) {
-            found = false;
-            break;
-          }
-        if (found) {
-          return i + 1;
-        }
-      }
+    if (leaves != null && --leaves[0] < 0)
+      throw new LeafLimitException();
+    return orders[ConfigTables.rank(perm)];
+  }
+
+  /**
+   * Memoized {@link #findByBacktrack(int[], int[], int)}, the result only
+   * depends on the rank pattern so symmetric cases (that need to backtrack)
+   * are only enumerated once. Concurrent callers may both compute a missing
+   * value but will store the same result.
+   *
+   * @param orders the permutation index for this configuration class
+   * @param memo   the memo for this configuration class
+   * @param perm   the rank pattern
+   * @return the best index
+   */
+  static int findBest(int[] orders,
+                      AtomicIntegerArray memo,
+                      int[] perm) {
+    return findBest(orders, memo, perm, 0);
+  }
+
+  /**
+   * {@link #findBest(int[], AtomicIntegerArray, int[])} with a limit on the
+   * leaves of the backtracking, a pattern that exceeds it is not memoized.
+   *
+   * @param orders    the permutation index for this configuration class
+   * @param memo      the memo for this configuration class
+   * @param perm      the rank pattern
+   * @param maxLeaves the maximum leaves, 0 for no limit
+   * @return the best index
+   * @throws LeafLimitException the limit was exceeded
+   */
+  static int findBest(int[] orders,
+                      AtomicIntegerArray memo,
+                      int[] perm,
+                      int maxLeaves) {
+    int key = 0;
+    for (int x : perm)
+      key = key * perm.length + x;
+    int best = memo.get(key);
+    if (best == 0) {
+      best = findByBacktrack(orders, perm, 100, maxLeaves > 0 ? new int[]{maxLeaves} : null);
+      memo.set(key, best);
     }
+    return best;
+  }
 
-    // should not get here
-    throw new IllegalStateException();
+  static int getConfigNum(IStereoElement<IAtom, IAtom> se,
+                          int[] orders,
+                          AtomicIntegerArray memo,
+                          long[] sym,
+                          int[] numbers) {
+    return getConfigNum(se, orders, memo, sym, numbers, scratch.get(), 0);
   }
 
   private static int getConfigNum(IStereoElement<IAtom, IAtom> se,
-                                  final int[][] table,
-                                  final long[] sym,
-                                  final long[] numbers) {
-    List<IAtom>         carriers        = se.getCarriers();
-    List<IAtom>         carriersInOrder = new ArrayList<>(carriers);
-    Map<IAtom, Integer> map             = new HashMap<IAtom, Integer>();
+                                  int[] orders,
+                                  AtomicIntegerArray memo,
+                                  long[] sym,
+                                  int[] numbers,
+                                  Scratch scratch,
+                                  int maxLeaves) {
+    List<IAtom> carriers = se.getCarriers();
+    int         n        = carriers.size();
+    int[]       atoms    = scratch.atoms;
+    int[]       order    = scratch.order;
+    for (int i = 0; i < n; i++) {
+      atoms[i] = carriers.get(i).getIndex();
+      order[i] = i;
+    }
+
+    // carrier positions in canonical order, an insertion sort is all that is
+    // needed for at most 6 (stable as Collections.sort)
+    for (int i = 1; i < n; i++) {
+      int x = order[i];
+      int j = i;
+      for (; j > 0 && numbers[atoms[order[j - 1]]] > numbers[atoms[x]]; j--)
+        order[j] = order[j - 1];
+      order[j] = x;
+    }
 
     // need to normalize ranks ot 0-5
-    Collections.sort(carriersInOrder, new Comparator<IAtom>() {
-      public int compare(IAtom o1, IAtom o2) {
-        return Integer.compare((int) numbers[o1.getIndex()],
-                               (int) numbers[o2.getIndex()]);
+    int[] perm = scratch.perms[n];
+    int   num  = 0;
+    for (int i = 0; i < n; i++) {
+      if (i > 0 && sym[atoms[order[i]]] != sym[atoms[order[i - 1]]])
+        num = i;
+      perm[order[i]] = num;
+    }
+
+    return findBest(orders, memo, perm, maxLeaves);
+  }
+
+  /**
+   * Parse a SMILES string with this thread's parser.
+   *
+   * @param smi the SMILES
+   * @return the molecule
+   * @throws InvalidSmilesException the SMILES could not be parsed
+   */
+  public IAtomContainer parseSmiles(String smi) throws InvalidSmilesException {
+    return smipar.get().parseSmiles(smi);
+  }
+
+  /**
+   * Does the molecule have any Square Planar, Trigonal Bipyramidal, or
+   * Octahedral stereo, i.e. anything to go in the '/ma' layer.
+   *
+   * @param mol the molecule
+   * @return there is metal geometry
+   */
+  public static boolean hasMetalGeometry(IAtomContainer mol) {
+    for (IStereoElement se : mol.stereoElements()) {
+      switch (se.getConfigClass()) {
+        case IStereoElement.SP:
+        case IStereoElement.TBPY:
+        case IStereoElement.OC:
+          return true;
       }
-    });
+    }
+    return false;
+  }
 
-    int num  = 0;
-    int nCls = 1;
-    for (int i = 0; i < carriersInOrder.size(); i++) {
-      if (i > 0 && sym[carriersInOrder.get(i).getIndex()] != sym[carriersInOrder.get(i - 1).getIndex()]) {
-        num = i;
-        nCls++;
+  /**
+   * Text level check of whether a SMILES could specify Square Planar,
+   * Trigonal Bipyramidal, or Octahedral stereo. This is conservative, if
+   * false the parsed molecule will not have any metal geometry. Any '@' is
+   * a possible centre, not just @SP, @TB and @OH, as a bare '@'/'@@' on a 5
+   * or 6 coordinate atom is read as TB1/OH1 (or TB2/OH2). Only the SMILES
+   * (up to the first space or tab) is checked.
+   *
+   * @param smi the SMILES (optionally followed by a title)
+   * @return there may be metal geometry
+   */
+  public static boolean hasMetalGeometry(String smi) {
+    for (int i = 0; i < smi.length(); i++) {
+      char c = smi.charAt(i);
+      if (c == ' ' || c == '\t')
+        break;
+      if (c == '@')
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Generate the InChI with the '/ma' layer for a molecule.
+   *
+   * @param mol the molecule
+   * @return the InChI, null if it could not be generated
+   */
+  public String generate(IAtomContainer mol) {
+    return generate(mol, hasMetalGeometry(mol));
+  }
+
+  /**
+   * Generate the InChI with the '/ma' layer for a molecule. If the caller
+   * already knows there is no metal geometry (e.g. from
+   * {@link #hasMetalGeometry(String)}) all the '/ma' work is skipped and this
+   * costs a single InChI call.
+   *
+   * @param mol           the molecule
+   * @param metalGeometry the molecule may have metal geometry
+   * @return the InChI, null if it could not be generated
+   */
+  public String generate(IAtomContainer mol, boolean metalGeometry) {
+    StringBuilder sb = scratch.get().sb;
+    sb.setLength(0);
+    try {
+      return generate(mol, metalGeometry, sb) ? sb.toString() : null;
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // StringBuilder does not throw
+    }
+  }
+
+  /**
+   * Write the InChI with the '/ma' layer for a molecule to an output, for
+   * example a StringBuilder or Writer.
+   *
+   * @param mol the molecule
+   * @param out where to write the InChI
+   * @return the InChI was written, if false nothing was written
+   * @throws IOException the output could not be written
+   * @see #generate(IAtomContainer, boolean, Appendable)
+   */
+  public boolean generate(IAtomContainer mol, Appendable out) throws IOException {
+    return generate(mol, hasMetalGeometry(mol), out);
+  }
+
+  /**
+   * Write the InChI with the '/ma' layer for a molecule to an output, for
+   * example a StringBuilder or Writer. The layer is written directly using
+   * per-thread working space so once warmed up the only allocation is that
+   * of CDK (the InChI call and stereo normalisation).
+   *
+   * @param mol           the molecule
+   * @param metalGeometry the molecule may have metal geometry
+   * @param out           where to write the InChI
+   * @return the InChI was written, if false nothing was written
+   * @throws IOException the output could not be written
+   */
+  public boolean generate(IAtomContainer mol, boolean metalGeometry, Appendable out) throws IOException {
+    try {
+      if (!metalGeometry) {
+        Stats          stats    = this.stats;
+        long           t0       = stats != null ? System.nanoTime() : 0;
+        InChIGenerator inchigen = inchifact.getInChIGenerator(mol, opts);
+        String         inchi    = inchigen.getInchi();
+        if (stats != null)
+          stats.record(Stats.Stage.INCHI, t0);
+        if (inchi == null) {
+          System.err.println("ERROR: Could not generate inchi " + inchigen.getMessage());
+          return false;
+        }
+        out.append(inchi).append("/ma");
+        return true;
       }
-      map.put(carriersInOrder.get(i), num);
+
+      Layers layers = getLayers(mol);
+      if (layers == null)
+        return false;
+      int n = computeMaLayer(mol, layers);
+      writeMaLayer(out, layers.inchi, layers, n);
+      return true;
+    } catch (LeafLimitException e) {
+      leafLimitError(mol);
+      return false;
+    } catch (CDKException e) {
+      System.err.println("ERROR: Could not generate inchi " + e.getMessage());
+      return false;
     }
+  }
 
-    int[] perm = new int[carriers.size()];
-    int   idx  = 0;
-    for (IAtom atom : carriers) {
-      perm[idx++] = map.get(atom);
+  /**
+   * Generate the InChIs with the '/ma' layer for conformers of a molecule,
+   * molecules with the same connection table (atoms and bonds in the same
+   * order) that only differ in coordinates and so their perceived metal
+   * geometry. The InChI, numbering and symmetry classes are computed once
+   * from the first conformer and only the '/ma' layer is computed for each,
+   * the conformers must therefore also have the same tetrahedral and double
+   * bond stereo.
+   *
+   * @param conformers the conformers
+   * @return the InChI of each conformer, null for all if they could not be
+   *         generated
+   */
+  public List<String> generateConformers(List<IAtomContainer> conformers) {
+    List<String> inchis = new ArrayList<>(conformers.size());
+    if (conformers.isEmpty())
+      return inchis;
+    boolean metalGeometry = false;
+    for (IAtomContainer mol : conformers) {
+      if (hasMetalGeometry(mol)) {
+        metalGeometry = true;
+        break;
+      }
+    }
+    try {
+      if (!metalGeometry) {
+        String inchi = generate(conformers.get(0), false);
+        for (int i = 0; i < conformers.size(); i++)
+          inchis.add(inchi);
+        return inchis;
+      }
+      Layers layers = getLayers(conformers.get(0));
+      for (IAtomContainer mol : conformers)
+        inchis.add(layers != null ? withMaLayer(layers.inchi, mol, layers) : null);
+    } catch (CDKException e) {
+      System.err.println("ERROR: Could not generate inchi " + e.getMessage());
+      inchis.clear();
+      for (int i = 0; i < conformers.size(); i++)
+        inchis.add(null);
     }
+    return inchis;
+  }
 
-    return findByBacktrack(table, perm, 100);
+  /**
+   * Add the '/ma' layer to an InChI that was generated previously, only the
+   * AuxInfo numbering (and symmetry) is needed so there is no native InChI
+   * call. The molecule must have its atoms in the same order as when the
+   * InChI and AuxInfo were generated, and they must have been generated with
+   * the same options as this engine.
+   *
+   * @param mol     the molecule (with its metal geometry)
+   * @param inchi   the InChI, without a '/ma' layer
+   * @param auxinfo the AuxInfo of the InChI
+   * @return the InChI with the '/ma' layer, null if the AuxInfo does not
+   *         match the molecule
+   */
+  public String generate(IAtomContainer mol, String inchi, String auxinfo) {
+    if (!inchi.startsWith("InChI=") || !auxinfo.startsWith("AuxInfo=")) {
+      System.err.println("ERROR: Expected an InChI and AuxInfo: " + inchi + " " + auxinfo);
+      return null;
+    }
+    if (!hasMetalGeometry(mol))
+      return inchi + "/ma";
+    Layers layers;
+    try {
+      layers = toLayers(mol, inchi, auxinfo);
+    } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+      System.err.println("ERROR: AuxInfo does not match the molecule: " + auxinfo);
+      return null;
+    }
+    return withMaLayer(inchi, mol, layers);
   }
 
-  public static String toInChI(IAtomContainer mol, List<INCHI_OPTION> opts) {
+  /**
+   * Enumerate the distinct metal stereoisomers of a molecule. Each Square
+   * Planar, Trigonal Bipyramidal and Octahedral centre (its configuration is
+   * ignored) is given every order and only the orders with a distinct '/ma'
+   * number, i.e. that still differ once the symmetry classes of the carriers
+   * are considered, are kept. The InChI is generated once and the isomers are
+   * the product of the centres, built lazily as the iterator is consumed.
+   * As in the '/ma' layer centres are independent, isomers that only differ
+   * by exchanging symmetric centres are not merged.
+   *
+   * @param mol the molecule
+   * @return the InChI of each stereoisomer, none if the InChI could not be
+   *         generated
+   */
+  public Iterator<String> enumerate(IAtomContainer mol) {
+    Layers layers;
     try {
-      InChIGenerator inchigen = inchifact.getInChIGenerator(mol, opts);
-      String         inchi    = inchigen.getInchi();
-      String         auxinfo  = inchigen.getAuxInfo();
-
-      final long[] numbers = new long[mol.getAtomCount()];
-      InChINumbersTools.parseAuxInfo(auxinfo, numbers);
-
-      // This can be done as part of the InChI canon algorithm
-      // whilst back-tracking, here we need to do some extra
-      // external symmetry perception canonical labelling to handle
-      // cases where are symmetric numbers
-      long[] sym = Canon.symmetry(mol, GraphUtil.toAdjList(mol));
-
-      StringBuilder malayer = new StringBuilder();
-
-      // need to traverse geometries in canonical order
-      List<IStereoElement> stereos = new ArrayList<>(FluentIterable.from(mol.stereoElements())
-                                                                   .toList());
-      Collections.sort(stereos, new Comparator<IStereoElement>() {
-        @Override
-        public int compare(IStereoElement a, IStereoElement b) {
-          // only care about atom-based stereo ignore cis-trans for example
-          if (a.getFocus() instanceof IAtom && b.getFocus() instanceof IAtom) {
-            return Integer.compare((int) numbers[((IAtom) a.getFocus()).getIndex()],
-                                   (int) numbers[((IAtom) b.getFocus()).getIndex()]);
-          } else if (!(a.getFocus() instanceof IAtom))
-            return -1;
-          else if (!(b.getFocus() instanceof IAtom))
-            return +1;
-          else
-            return 0;
+      layers = getLayers(mol);
+    } catch (CDKException e) {
+      System.err.println("ERROR: Could not generate inchi " + e.getMessage());
+      return Collections.emptyIterator();
+    }
+    if (layers == null)
+      return Collections.emptyIterator();
+
+    // the centres in canonical order, as in the '/ma' layer
+    List<IStereoElement> centres = new ArrayList<>();
+    for (IStereoElement se : mol.stereoElements()) {
+      switch (se.getConfigClass()) {
+        case IStereoElement.OC:
+        case IStereoElement.SP:
+        case IStereoElement.TBPY:
+          centres.add(se);
+          break;
+      }
+    }
+    long[] keys = new long[centres.size()];
+    for (int i = 0; i < keys.length; i++)
+      keys[i] = (long) layers.numbers[((IAtom) centres.get(i).getFocus()).getIndex()] << 32 | i;
+    Arrays.sort(keys);
+
+    int[]    focus   = new int[keys.length];
+    String[] labels  = new String[keys.length];
+    int[][]  configs = new int[keys.length][];
+    try {
+      for (int i = 0; i < keys.length; i++) {
+        @SuppressWarnings("unchecked")
+        IStereoElement<IAtom, IAtom> se       = centres.get((int) keys[i]);
+        IAtom                        atom     = se.getFocus();
+        IAtom[]                      carriers = se.getCarriers().toArray(new IAtom[0]);
+        focus[i] = layers.numbers[atom.getIndex()];
+        switch (se.getConfigClass()) {
+          case IStereoElement.OC:
+            labels[i] = "o";
+            configs[i] = distinctConfigs(new Octahedral(atom, carriers, 1), 30,
+                                         ConfigTables.OC_ORDERS, OC_MEMO, layers);
+            break;
+          case IStereoElement.SP:
+            labels[i] = "sp";
+            configs[i] = distinctConfigs(new SquarePlanar(atom, carriers, 1), 3,
+                                         ConfigTables.SP_ORDERS, SP_MEMO, layers);
+            break;
+          case IStereoElement.TBPY:
+            labels[i] = "tb";
+            configs[i] = distinctConfigs(new TrigonalBipyramidal(atom, carriers, 1), 20,
+                                         ConfigTables.TBPY_ORDERS, TBPY_MEMO, layers);
+            break;
         }
-      });
-      for (IStereoElement se : stereos) {
+      }
+    } catch (LeafLimitException e) {
+      leafLimitError(mol);
+      return Collections.emptyIterator();
+    }
+    return new Isomers(layers.inchi + "/ma", focus, labels, configs);
+  }
+
+  // the distinct '/ma' numbers of a centre over all its orders, ascending
+  private int[] distinctConfigs(IStereoElement<IAtom, IAtom> se, int nOrders,
+                                int[] orders, AtomicIntegerArray memo, Layers layers) {
+    Scratch scratch = InChIMetalArch.scratch.get();
+    BitSet seen = new BitSet();
+    for (int order = 1; order <= nOrders; order++) {
+      se.setConfigOrder(order);
+      IStereoElement<IAtom, IAtom> norm;
+      if (se instanceof Octahedral)
+        norm = ((Octahedral) se).normalize();
+      else if (se instanceof SquarePlanar)
+        norm = ((SquarePlanar) se).normalize();
+      else
+        norm = ((TrigonalBipyramidal) se).normalize();
+      seen.set(getConfigNum(norm, orders, memo, layers.sym, layers.numbers, scratch, maxLeaves));
+    }
+    int[] configs = new int[seen.cardinality()];
+    int   n       = 0;
+    for (int num = seen.nextSetBit(0); num >= 0; num = seen.nextSetBit(num + 1))
+      configs[n++] = num;
+    return configs;
+  }
+
+  /**
+   * The product of the distinct configurations of each centre, the last
+   * centre varies fastest.
+   */
+  private static final class Isomers implements Iterator<String> {
+
+    private final String   prefix;
+    private final int[]    focus;
+    private final String[] labels;
+    private final int[][]  configs;
+    private final int[]    digits;
+    private       boolean  more = true;
+
+    private Isomers(String prefix, int[] focus, String[] labels, int[][] configs) {
+      this.prefix = prefix;
+      this.focus = focus;
+      this.labels = labels;
+      this.configs = configs;
+      this.digits = new int[focus.length];
+    }
+
+    @Override
+    public boolean hasNext() {
+      return more;
+    }
+
+    @Override
+    public String next() {
+      if (!more)
+        throw new NoSuchElementException();
+      StringBuilder sb = new StringBuilder(prefix);
+      for (int i = 0; i < focus.length; i++) {
+        if (i != 0)
+          sb.append(',');
+        sb.append(focus[i]).append(labels[i]).append(configs[i][digits[i]]);
+      }
+      int i = digits.length - 1;
+      while (i >= 0 && ++digits[i] == configs[i].length)
+        digits[i--] = 0;
+      more = i >= 0;
+      return sb.toString();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private String withMaLayer(String inchi, IAtomContainer mol, Layers layers) {
+    StringBuilder sb = scratch.get().sb;
+    sb.setLength(0);
+    try {
+      int n = computeMaLayer(mol, layers);
+      writeMaLayer(sb, inchi, layers, n);
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // StringBuilder does not throw
+    } catch (LeafLimitException e) {
+      leafLimitError(mol);
+      return null;
+    }
+    return sb.toString();
+  }
+
+  private void leafLimitError(IAtomContainer mol) {
+    long   record = Pipeline.currentRecord();
+    String title  = mol.getTitle() != null ? mol.getTitle() : "";
+    System.err.println("ERROR: Exceeded the backtracking leaf limit (" + maxLeaves + ") on " +
+                       (record > 0 ? "record " + record + ": " : "") + title);
+  }
+
+  // find the configurations of the metal geometries of a molecule in
+  // canonical order into the scratch (stereos, keys and configs), then
+  // writeMaLayer must be called with the number found, throws
+  // LeafLimitException
+  private int computeMaLayer(IAtomContainer mol, Layers layers) {
+    int[]   numbers = layers.numbers;
+    long[]  sym     = layers.sym;
+    Stats   stats   = this.stats;
+    long    t0      = stats != null ? System.nanoTime() : 0;
+    Scratch scratch = InChIMetalArch.scratch.get();
+
+    // need to traverse geometries in canonical order, only the metal
+    // geometries are needed, these are sorted on the canonical number of the
+    // focus packed above their input position (keeps the sort stable)
+    IStereoElement[] stereos = scratch.stereos;
+    long[]           keys    = scratch.keys;
+    int              n       = 0;
+    for (IStereoElement se : mol.stereoElements()) {
+      switch (se.getConfigClass()) {
+        case IStereoElement.OC:
+        case IStereoElement.SP:
+        case IStereoElement.TBPY:
+          if (n == keys.length) {
+            stereos = scratch.stereos = Arrays.copyOf(stereos, 2 * n);
+            keys = scratch.keys = Arrays.copyOf(keys, 2 * n);
+          }
+          keys[n] = (long) numbers[((IAtom) se.getFocus()).getIndex()] << 32 | n;
+          stereos[n++] = se;
+          break;
+      }
+    }
+    Arrays.sort(keys, 0, n);
+
+    if (scratch.configs.length < n)
+      scratch.configs = new int[keys.length];
+    int[]   configs = scratch.configs;
+    boolean done    = false;
+    try {
+      for (int i = 0; i < n; i++) {
+        IStereoElement se = stereos[(int) keys[i]];
         switch (se.getConfigClass()) {
           case IStereoElement.OC:
-            Octahedral oc = (Octahedral) se;
-            if (malayer.length() != 0)
-              malayer.append(',');
-            malayer.append(numbers[oc.getFocus().getIndex()])
-                   .append("o").append(getConfigNum(oc.normalize(), ConfigTables.OC,
-                                                    sym, numbers));
+            configs[i] = getConfigNum(((Octahedral) se).normalize(),
+                                      ConfigTables.OC_ORDERS,
+                                      OC_MEMO,
+                                      sym, numbers, scratch, maxLeaves);
             break;
           case IStereoElement.SP:
-            SquarePlanar sp = (SquarePlanar) se;
-            if (malayer.length() != 0)
-              malayer.append(',');
-            malayer.append(numbers[sp.getFocus().getIndex()])
-                   .append("sp").append(getConfigNum(sp.normalize(),
-                                                     ConfigTables.SP,
-                                                     sym, numbers));
+            configs[i] = getConfigNum(((SquarePlanar) se).normalize(),
+                                      ConfigTables.SP_ORDERS,
+                                      SP_MEMO,
+                                      sym, numbers, scratch, maxLeaves);
             break;
           case IStereoElement.TBPY:
-            TrigonalBipyramidal tbpy = (TrigonalBipyramidal) se;
-            if (malayer.length() != 0)
-              malayer.append(',');
-            malayer.append(numbers[tbpy.getFocus().getIndex()])
-                   .append("tb").append(getConfigNum(tbpy.normalize(),
-                                                     ConfigTables.TBPY,
-                                                     sym, numbers));
+            configs[i] = getConfigNum(((TrigonalBipyramidal) se).normalize(),
+                                      ConfigTables.TBPY_ORDERS,
+                                      TBPY_MEMO,
+                                      sym, numbers, scratch, maxLeaves);
             break;
         }
       }
-      inchi += "/ma" + malayer.toString();
-      return inchi;
-    } catch (CDKException e) {
-      System.err.println("ERROR: Could not generate inchi " + e.getMessage());
+      done = true;
+    } finally {
+      // don't hold on to the molecule
+      if (!done)
+        Arrays.fill(stereos, 0, n, null);
+    }
+    if (stats != null)
+      stats.record(Stats.Stage.CONFIG, t0);
+    return n;
+  }
+
+  // write the InChI and the '/ma' layer found by computeMaLayer
+  private void writeMaLayer(Appendable out, String inchi, Layers layers, int n) throws IOException {
+    int[]            numbers = layers.numbers;
+    Scratch          scratch = InChIMetalArch.scratch.get();
+    IStereoElement[] stereos = scratch.stereos;
+    long[]           keys    = scratch.keys;
+    int[]            configs = scratch.configs;
+    try {
+      out.append(inchi).append("/ma");
+      for (int i = 0; i < n; i++) {
+        IStereoElement se = stereos[(int) keys[i]];
+        if (i != 0)
+          out.append(',');
+        appendInt(out, numbers[((IAtom) se.getFocus()).getIndex()]);
+        switch (se.getConfigClass()) {
+          case IStereoElement.OC:
+            out.append('o');
+            break;
+          case IStereoElement.SP:
+            out.append("sp");
+            break;
+          case IStereoElement.TBPY:
+            out.append("tb");
+            break;
+        }
+        appendInt(out, configs[i]);
+      }
+    } finally {
+      // don't hold on to the molecule
+      Arrays.fill(stereos, 0, n, null);
+    }
+  }
+
+  // a non-negative number without a temporary string
+  private static void appendInt(Appendable out, int num) throws IOException {
+    int div = 1;
+    while (num / div >= 10)
+      div *= 10;
+    for (; div > 0; div /= 10)
+      out.append((char) ('0' + (num / div) % 10));
+  }
+
+  private Layers getLayers(IAtomContainer mol) throws CDKException {
+    LruCache<String, Layers> cache = this.layerCache;
+    String                   key   = null;
+    if (cache != null) {
+      key = StructureKey.withoutMetalGeometry(mol);
+      Layers layers = cache.get(key);
+      if (layers != null)
+        return layers;
+    }
+
+    Stats          stats    = this.stats;
+    long           t        = stats != null ? System.nanoTime() : 0;
+    InChIGenerator inchigen = inchifact.getInChIGenerator(mol, opts);
+    String         inchi    = inchigen.getInchi();
+    if (stats != null)
+      t = stats.record(Stats.Stage.INCHI, t);
+    if (inchi == null) {
+      System.err.println("ERROR: Could not generate inchi " + inchigen.getMessage());
       return null;
     }
+    Layers layers = toLayers(mol, inchi, inchigen.getAuxInfo());
+    if (cache != null)
+      cache.put(key, layers);
+    return layers;
   }
 
-  public static String toInChI(String smi, List<INCHI_OPTION> opts) {
+  // the numbering and symmetry classes for an InChI/AuxInfo of a molecule
+  private Layers toLayers(IAtomContainer mol, String inchi, String auxinfo) {
+    Stats stats = this.stats;
+    long  t     = stats != null ? System.nanoTime() : 0;
+
+    int[] numbers = new int[mol.getAtomCount()];
+    AuxInfo.parseNumbers(auxinfo, numbers, numbers.length);
+    if (stats != null)
+      t = stats.record(Stats.Stage.AUXINFO, t);
+
+    // This can be done as part of the InChI canon algorithm
+    // whilst back-tracking, here we need to do some extra
+    // external symmetry perception canonical labelling to handle
+    // cases where are symmetric numbers
+    long[] sym = auxInfoSymmetry ? AuxInfo.symmetry(auxinfo, mol) : null;
+    if (sym == null)
+      sym = Canon.symmetry(mol, GraphUtil.toAdjList(mol));
+    if (stats != null)
+      stats.record(Stats.Stage.SYMMETRY, t);
+
+    return new Layers(inchi, numbers, sym);
+  }
+
+  /**
+   * Generate the InChI with the '/ma' layer for a SMILES string.
+   *
+   * @param smi the SMILES
+   * @return the InChI, null if the SMILES was invalid or the InChI could not
+   *         be generated
+   */
+  public String generate(String smi) {
     try {
-      return toInChI(smipar.parseSmiles(smi), opts);
+      IAtomContainer mol = parseSmiles(smi);
+      return generate(mol, hasMetalGeometry(smi) && hasMetalGeometry(mol));
     } catch (InvalidSmilesException e) {
       System.err.println("ERROR: Bad SMILES " + e.getMessage());
       return null;
     }
   }
+
+  public static String toInChI(IAtomContainer mol, List<INCHI_OPTION> opts) {
+    return new InChIMetalArch(opts).generate(mol);
+  }
+
+  public static String toInChI(String smi, List<INCHI_OPTION> opts) {
+    return new InChIMetalArch(opts).generate(smi);
+  }
 }
@@ -0,0 +1,455 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import org.openscience.cdk.config.Elements;
+import org.openscience.cdk.config.Isotopes;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.interfaces.IChemObjectBuilder;
+import org.openscience.cdk.interfaces.IIsotope;
+import org.openscience.cdk.io.MDLV2000Writer;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+
+import javax.vecmath.Point3d;
+import java.io.IOException;
+
+/**
+ * A streamlined reader for 3D V2000 molfiles that only reads what the InChI
+ * and 3D perception need: atoms, bonds, charges, isotopes, radicals and
+ * coordinates. The record is scanned in place, the fields are read into
+ * primitive arrays and only then are the atoms and bonds created, no
+ * property (data item) map, reader stack or stereo elements are built. The
+ * 0D tetrahedral/double bond stereo the CDK reader would add is not needed
+ * as InChI takes the stereo from the 3D coordinates.
+ *
+ * <p>The container matches what {@link org.openscience.cdk.io.MDLV2000Reader}
+ * would provide InChI, including the implicit hydrogen counts from the MDL
+ * valence model. Anything else (V3000, 2D, query features, pseudo atoms,
+ * aliases, atom lists, etc.) is not handled and {@link #read} returns null,
+ * the caller should then use the full CDK reader.</p>
+ */
+final class LiteMolfileReader {
+
+  private static final IChemObjectBuilder bldr = SilentChemObjectBuilder.getInstance();
+
+  // allowed (MDL) valences indexed by element and charge (-4..+6), the
+  // implicit valence is the first that is >= the explicit valence
+  private static final int       MIN_CHG  = -4;
+  private static final int       MAX_CHG  = 6;
+  private static final int[][][] VALENCES = new int[119][MAX_CHG - MIN_CHG + 1][];
+
+  static {
+    // group 1 and 2
+    valences(new int[]{1, 3, 11, 19, 37, 55, 87}, 0, 1);
+    valences(new int[]{4, 12, 20, 38, 56, 88}, 0, 2);
+    valences(new int[]{4, 12, 20, 38, 56, 88}, +1, 1);
+    // B-F and Al-Cl, isoelectronic with increasing charge
+    for (int elem : new int[]{5, 6, 7, 8, 9, 13, 14, 15, 16, 17}) {
+      int q = elem - (elem < 10 ? 9 : 17); // lowest charge
+      if (elem < 10) {
+        valences(elem, q, 1);
+        valences(elem, q + 1, 2);
+      } else {
+        valences(elem, q, 1, 3, 5, 7);
+        valences(elem, q + 1, 2, 4, 6);
+      }
+      valences(elem, q + 2, 3, 5);
+      valences(elem, q + 3, 4);
+      valences(elem, q + 4, 3);
+      valences(elem, q + 5, 2);
+      valences(elem, q + 6, 1);
+    }
+    // Ga-Br, In-I, Tl-At
+    for (int elem : new int[]{31, 49, 81}) {
+      for (int i = 0; i < 5; i++) {
+        int q = -4 + i;
+        valences(elem + i, q, 1, 3, 5, 7);
+        valences(elem + i, q + 1, 2, 4, 6);
+        valences(elem + i, q + 2, 3, 5);
+        if (elem == 31)
+          valences(elem + i, q + 3, 4);
+        else
+          valences(elem + i, q + 3, 2, 4);
+        if (elem == 81 && i == 0)
+          valences(elem + i, q + 4, 1, 3);
+        else
+          valences(elem + i, q + 4, 3);
+        if (!(elem == 81 && i == 0))
+          valences(elem + i, q + 6, 1);
+      }
+    }
+  }
+
+  private static void valences(int elem, int q, int... valences) {
+    VALENCES[elem][q - MIN_CHG] = valences;
+  }
+
+  private static void valences(int[] elems, int q, int... valences) {
+    for (int elem : elems)
+      valences(elem, q, valences);
+  }
+
+  /**
+   * The implicit valence of an element with a charge and explicit valence in
+   * the MDL valence model.
+   *
+   * @param elem atomic number
+   * @param q    formal charge
+   * @param val  explicit valence
+   * @return the implicit valence
+   */
+  static int implicitValence(int elem, int q, int val) {
+    if (elem < 0 || elem >= VALENCES.length || q < MIN_CHG || q > MAX_CHG)
+      return val;
+    int[] valences = VALENCES[elem][q - MIN_CHG];
+    if (valences == null)
+      return val;
+    for (int v : valences)
+      if (val <= v)
+        return v;
+    return val;
+  }
+
+  private LiteMolfileReader() {
+  }
+
+  /**
+   * Read a molfile (or SDfile record).
+   *
+   * @param molfile the molfile text
+   * @return the molecule, or null if the record needs the full reader
+   */
+  static IAtomContainer read(String molfile) {
+    try {
+      return readUnchecked(molfile);
+    } catch (IndexOutOfBoundsException | NumberFormatException | CDKException | IOException e) {
+      return null;
+    }
+  }
+
+  private static IAtomContainer readUnchecked(String molfile) throws CDKException, IOException {
+    int[] line = new int[3]; // begin, end (excl. terminator), next
+    if (!nextLine(molfile, 0, line))
+      return null;
+    String title = line[1] > line[0] ? molfile.substring(line[0], line[1]) : null;
+    if (title != null && title.startsWith("$$$$"))
+      return null;
+    if (!nextLine(molfile, line[2], line))
+      return null;
+    boolean is3d = line[1] - line[0] >= 22 &&
+                   molfile.charAt(line[0] + 20) == '3' && molfile.charAt(line[0] + 21) == 'D';
+    if (!nextLine(molfile, line[2], line) || !nextLine(molfile, line[2], line))
+      return null;
+
+    // counts line, V2000 only
+    int beg = line[0];
+    int end = line[1];
+    if (!isV2000(molfile, beg, end))
+      return null;
+    int nAtoms = readMolfileInt(molfile, beg, end);
+    int nBonds = readMolfileInt(molfile, beg + 3, end);
+    if (nAtoms <= 0 || nBonds < 0)
+      return null;
+
+    int[]     elem     = new int[nAtoms];
+    int[]     charge   = new int[nAtoms];
+    int[]     mass     = new int[nAtoms]; // 0 = unset
+    int[]     valence  = new int[nAtoms]; // -1 = unset
+    int[]     explicit = new int[nAtoms];
+    double[]  xyz      = new double[3 * nAtoms];
+    boolean   hasX     = false, hasY = false, hasZ = false;
+    for (int i = 0; i < nAtoms; i++) {
+      if (!nextLine(molfile, line[2], line))
+        return null;
+      beg = line[0];
+      end = line[1];
+      int len = Math.min(trimmedEnd(molfile, beg, end) - beg, 69);
+      if (!validAtomLineLength(len))
+        return null;
+      for (int d = 0; d < 3; d++) {
+        double coord = readCoordinate(molfile, beg + 10 * d);
+        if (Double.isNaN(coord))
+          return null;
+        xyz[3 * i + d] = coord;
+      }
+      hasX = hasX || xyz[3 * i] != 0;
+      hasY = hasY || xyz[3 * i + 1] != 0;
+      hasZ = hasZ || xyz[3 * i + 2] != 0;
+      Elements element = Elements.ofString(molfile.substring(beg + 31, beg + 34).trim());
+      if (element == Elements.Unknown)
+        return null;
+      elem[i] = element.number();
+      valence[i] = -1;
+      if (len >= 36) {
+        int massDiff = (molfile.charAt(beg + 34) == '-' ? -1 : 1) * toInt(molfile.charAt(beg + 35));
+        if (massDiff != 0 && elem[i] > 0) {
+          IIsotope major = Isotopes.getInstance().getMajorIsotope(elem[i]);
+          mass[i] = major != null ? major.getMassNumber() + massDiff : -1;
+        }
+      }
+      if (len >= 39)
+        charge[i] = toCharge(molfile.charAt(beg + 38));
+      if (len >= 51) {
+        int val = readMolfileInt(molfile, beg + 48, end);
+        if (val > 0 && val < 16)
+          valence[i] = val == 15 ? 0 : val;
+      }
+    }
+    // no coordinates or 2D, not for us
+    if (!(hasX || hasY || hasZ) || !(hasZ || is3d))
+      return null;
+
+    int[] bonds = new int[4 * nBonds]; // begin, end, order, stereo
+    for (int i = 0; i < nBonds; i++) {
+      if (!nextLine(molfile, line[2], line))
+        return null;
+      beg = line[0];
+      end = line[1];
+      int len = Math.min(trimmedEnd(molfile, beg, end) - beg, 21);
+      if (len != 9 && len != 12 && len != 15 && len != 18 && len != 21)
+        return null;
+      int u     = readMolfileInt(molfile, beg, end) - 1;
+      int v     = readMolfileInt(molfile, beg + 3, end) - 1;
+      int order = readMolfileInt(molfile, beg + 6, end);
+      if (u < 0 || u >= nAtoms || v < 0 || v >= nAtoms || order < 1 || order > 3)
+        return null;
+      bonds[4 * i] = u;
+      bonds[4 * i + 1] = v;
+      bonds[4 * i + 2] = order;
+      bonds[4 * i + 3] = len >= 12 ? readUInt(molfile, beg + 9, 3) : 0;
+      explicit[u] += order;
+      explicit[v] += order;
+    }
+
+    // properties, only charges, isotopes and radicals
+    int[] radicals = null;
+    while (true) {
+      if (!nextLine(molfile, line[2], line))
+        return null;
+      beg = line[0];
+      end = line[1];
+      if (end - beg < 5)
+        continue;
+      char c0 = molfile.charAt(beg);
+      if (molfile.charAt(beg + 1) != ' ' || molfile.charAt(beg + 2) != ' ')
+        continue;
+      if (c0 == 'A' || c0 == 'G' || c0 == 'S')
+        return null; // aliases, abbreviations, skips
+      if (c0 != 'M')
+        continue;
+      String key = molfile.substring(beg + 3, beg + 6);
+      if (key.equals("END"))
+        break;
+      if (key.equals("RGP") || key.equals("ALS"))
+        return null;
+      boolean chg = key.equals("CHG"), iso = key.equals("ISO"), rad = key.equals("RAD");
+      if (!chg && !iso && !rad)
+        continue;
+      int count = readUInt(molfile, beg + 6, 3);
+      int st    = 10;
+      for (int i = 0; i < count && st + 7 <= end - beg; i++, st += 8) {
+        int idx = readMolfileInt(molfile, beg + st, end) - 1;
+        int val = readMolfileInt(molfile, beg + st + 4, end);
+        if (idx < 0 || idx >= nAtoms)
+          return null;
+        if (chg) {
+          charge[idx] = val;
+        } else if (iso) {
+          if (val >= 0)
+            mass[idx] = val;
+        } else {
+          if (radicals == null)
+            radicals = new int[nAtoms];
+          radicals[idx] += MDLV2000Writer.SPIN_MULTIPLICITY.ofValue(val).getSingleElectrons();
+        }
+      }
+    }
+
+    // build the container
+    IAtomContainer mol   = bldr.newAtomContainer();
+    IAtom[]        atoms = new IAtom[nAtoms];
+    for (int i = 0; i < nAtoms; i++) {
+      IAtom atom = bldr.newAtom();
+      atom.setSymbol(Elements.ofNumber(elem[i]).symbol());
+      atom.setAtomicNumber(elem[i]);
+      atom.setPoint3d(new Point3d(xyz[3 * i], xyz[3 * i + 1], xyz[3 * i + 2]));
+      atom.setFormalCharge(charge[i]);
+      if (mass[i] > 0)
+        atom.setMassNumber(mass[i]);
+      int unpaired = radicals != null ? radicals[i] : 0;
+      int expval   = explicit[i] + unpaired;
+      if (valence[i] >= 0) {
+        atom.setValency(valence[i]);
+        atom.setImplicitHydrogenCount(valence[i] >= expval ? valence[i] - (expval - unpaired) : 0);
+      } else {
+        int impval = implicitValence(elem[i], charge[i], expval);
+        if (impval < expval) {
+          atom.setValency(expval);
+          atom.setImplicitHydrogenCount(0);
+        } else {
+          atom.setValency(impval);
+          atom.setImplicitHydrogenCount(impval - expval);
+        }
+      }
+      atoms[i] = atom;
+    }
+    IBond[] bondArr = new IBond[nBonds];
+    for (int i = 0; i < nBonds; i++) {
+      int   order = bonds[4 * i + 2];
+      IBond bond  = bldr.newBond();
+      bond.setAtoms(new IAtom[]{atoms[bonds[4 * i]], atoms[bonds[4 * i + 1]]});
+      bond.setOrder(order == 1 ? IBond.Order.SINGLE : order == 2 ? IBond.Order.DOUBLE : IBond.Order.TRIPLE);
+      if (order != 3)
+        bond.setStereo(toStereo(bonds[4 * i + 3], order));
+      bondArr[i] = bond;
+    }
+    mol.setAtoms(atoms);
+    mol.setBonds(bondArr);
+    if (radicals != null) {
+      for (int i = 0; i < nAtoms; i++)
+        for (int j = 0; j < radicals[i]; j++)
+          mol.addSingleElectron(i);
+    }
+    if (title != null)
+      mol.setTitle(title);
+    return mol;
+  }
+
+  // the next line from 'pos', line[0..2] = begin, end, start of next line
+  private static boolean nextLine(String str, int pos, int[] line) {
+    if (pos >= str.length())
+      return false;
+    int end = pos;
+    while (end < str.length() && str.charAt(end) != '\n' && str.charAt(end) != '\r')
+      end++;
+    int next = end;
+    if (next < str.length()) {
+      if (str.charAt(next) == '\r' && next + 1 < str.length() && str.charAt(next + 1) == '\n')
+        next++;
+      next++;
+    }
+    line[0] = pos;
+    line[1] = end;
+    line[2] = next;
+    return true;
+  }
+
+  // as MDLV2000Reader, 'V2000' in columns 35-39 of the counts line
+  private static boolean isV2000(String str, int beg, int end) {
+    if (end - beg < 39)
+      return false;
+    char c = str.charAt(beg + 34);
+    return (c == 'V' || c == 'v') && str.charAt(beg + 35) == '2';
+  }
+
+  private static int trimmedEnd(String str, int beg, int end) {
+    while (end > beg && str.charAt(end - 1) == ' ')
+      end--;
+    return end;
+  }
+
+  private static boolean validAtomLineLength(int len) {
+    switch (len) {
+      case 32: case 33: case 34: case 36: case 39: case 42: case 45: case 48:
+      case 51: case 54: case 57: case 60: case 63: case 66: case 69:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  // fixed format xxxxx.xxxx coordinate, NaN if it's not in that format
+  private static double readCoordinate(String str, int offset) {
+    if (str.charAt(offset + 5) != '.')
+      return Double.NaN;
+    int start = offset;
+    while (str.charAt(start) == ' ')
+      start++;
+    int sign = 1;
+    if (str.charAt(start) == '-') {
+      sign = -1;
+      start++;
+    }
+    int integral = readUInt(str, start, offset + 5 - start);
+    int fraction = readUInt(str, offset + 6, 4);
+    return (double) ((long) sign * ((long) integral * 10000L + (long) fraction)) / 10000.0;
+  }
+
+  // a 3 character integer field (as MDLV2000Reader reads it)
+  private static int readMolfileInt(String str, int idx, int end) {
+    int  sign   = 1;
+    int  result = 0;
+    char c      = str.charAt(idx);
+    if (c == '-')
+      sign = -1;
+    else if (c >= '0' && c <= '9')
+      result = c - '0';
+    else if (c != ' ')
+      return 0;
+    for (int i = 1; i < 3; i++) {
+      if (idx + i == end)
+        return sign * result;
+      c = str.charAt(idx + i);
+      if (c == ' ') {
+        if (result > 0)
+          return sign * result;
+      } else if (c == '-' && i == 1) {
+        if (result > 0)
+          return sign * result;
+        sign = -1;
+      } else if (c >= '0' && c <= '9') {
+        result = result * 10 + (c - '0');
+      } else {
+        return sign * result;
+      }
+    }
+    return sign * result;
+  }
+
+  private static int readUInt(String str, int idx, int digits) {
+    int result = 0;
+    while (digits-- > 0)
+      result = result * 10 + toInt(str.charAt(idx++));
+    return result;
+  }
+
+  private static int toInt(char c) {
+    return c >= '0' && c <= '9' ? c - '0' : 0;
+  }
+
+  private static int toCharge(char c) {
+    switch (c) {
+      case '1': return +3;
+      case '2': return +2;
+      case '3': return +1;
+      case '5': return -1;
+      case '6': return -2;
+      case '7': return -3;
+      default:  return 0;
+    }
+  }
+
+  private static IBond.Stereo toStereo(int stereo, int order) {
+    switch (stereo) {
+      case 0:
+        return order == 2 ? IBond.Stereo.E_Z_BY_COORDINATES : IBond.Stereo.NONE;
+      case 1:
+        return IBond.Stereo.UP;
+      case 3:
+        return IBond.Stereo.E_OR_Z;
+      case 4:
+        return IBond.Stereo.UP_OR_DOWN;
+      case 6:
+        return IBond.Stereo.DOWN;
+      default:
+        return IBond.Stereo.NONE;
+    }
+  }
+}
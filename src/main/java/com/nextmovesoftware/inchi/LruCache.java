@@ -0,0 +1,144 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size bounded, least recently used, cache that is safe for concurrent use.
+ * The entries are spread over a number of independently locked segments by
+ * the hash of their key so concurrent lookups rarely wait on each other. Each
+ * segment evicts its own least recently used entry, the eviction order is
+ * therefore only approximately LRU over the whole cache.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+final class LruCache<K, V> {
+
+  /**
+   * A segment of the cache, a LRU map with its own lock (itself) and lookup
+   * counts.
+   */
+  private static final class Segment<K, V> extends LinkedHashMap<K, V> {
+    private final int  capacity;
+    private       long hits, misses; // guarded by this
+
+    private Segment(int capacity) {
+      super(Math.min(capacity, 1024), 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+      return size() > capacity;
+    }
+  }
+
+  private final Segment<K, V>[] segments;
+
+  /**
+   * Create a cache that holds at most capacity entries.
+   *
+   * @param capacity the maximum number of entries
+   */
+  LruCache(int capacity) {
+    this(capacity, 4 * Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Create a cache that holds at most capacity entries in (at most) the
+   * given number of segments, rounded down to a power of two.
+   *
+   * @param capacity  the maximum number of entries
+   * @param nSegments the number of segments
+   */
+  @SuppressWarnings("unchecked")
+  LruCache(int capacity, int nSegments) {
+    if (capacity < 1)
+      throw new IllegalArgumentException("Cache capacity must be positive");
+    if (nSegments < 1)
+      throw new IllegalArgumentException("Need at least one segment");
+    // every segment holds at least one entry
+    int n = Integer.highestOneBit(Math.min(capacity, nSegments));
+    this.segments = new Segment[n];
+    for (int i = 0; i < n; i++)
+      this.segments[i] = new Segment<>(capacity / n + (i < capacity % n ? 1 : 0));
+  }
+
+  private Segment<K, V> segment(Object key) {
+    int h = key.hashCode();
+    return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+  }
+
+  /**
+   * @param key the key
+   * @return the cached value, or null if not present
+   */
+  V get(K key) {
+    Segment<K, V> seg = segment(key);
+    synchronized (seg) {
+      V val = seg.get(key);
+      if (val != null)
+        seg.hits++;
+      else
+        seg.misses++;
+      return val;
+    }
+  }
+
+  /**
+   * @param key the key
+   * @param val the value
+   */
+  void put(K key, V val) {
+    Segment<K, V> seg = segment(key);
+    synchronized (seg) {
+      seg.put(key, val);
+    }
+  }
+
+  /**
+   * @return number of entries
+   */
+  int size() {
+    int size = 0;
+    for (Segment<K, V> seg : segments) {
+      synchronized (seg) {
+        size += seg.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * @return number of lookups that found a value
+   */
+  long hits() {
+    long hits = 0;
+    for (Segment<K, V> seg : segments) {
+      synchronized (seg) {
+        hits += seg.hits;
+      }
+    }
+    return hits;
+  }
+
+  /**
+   * @return number of lookups that did not find a value
+   */
+  long misses() {
+    long misses = 0;
+    for (Segment<K, V> seg : segments) {
+      synchronized (seg) {
+        misses += seg.misses;
+      }
+    }
+    return misses;
+  }
+}
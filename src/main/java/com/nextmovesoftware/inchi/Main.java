@@ -13,10 +13,10 @@ import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.cdk.interfaces.IChemObjectBuilder;
 import org.openscience.cdk.io.iterator.IteratingSDFReader;
 import org.openscience.cdk.silent.SilentChemObjectBuilder;
-import org.openscience.cdk.smiles.SmilesParser;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -26,23 +26,69 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
+import java.io.StringReader;
 import java.io.Writer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 
 public class Main {
 
   private static final IChemObjectBuilder builder = SilentChemObjectBuilder.getInstance();
-  private static final SmilesParser       smipar  = new SmilesParser(builder);
 
   private static final int                SMIFMT  = 1;
   private static final int                SDFFMT  = 2;
   private static       InputStream        in;
+  private static       File               infile;
   private static       OutputStream       out;
   private static       int                fmt     = SMIFMT;
   private static       List<INCHI_OPTION> options = new ArrayList<>();
+  private static       int                threads = 1;
+  private static       boolean            ordered = true;
+  private static       boolean            auxsym  = false;
+  private static       int                inchiCacheSize = 0;
+  private static       int                resultCacheSize = 0;
+  private static       boolean            showStats   = false;
+  private static       boolean            serve       = false;
+  private static       int                servePort   = -1;
+  private static       boolean            serveStatus = false;
+  private static       boolean            lite        = false;
+  private static       boolean            conformers  = false;
+  private static       boolean            distinct    = false;
+  private static       boolean            precomputed = false;
+  private static       boolean            enumerate   = false;
+  private static       int                timeout     = 0;
+  private static       int                maxLeaves   = 0;
+  private static       int                procs       = 0;
+  private static       File               rejects;
+  private static       Shard              shard;
+  private static       List<File>         mergeFiles;
+
+  // SD data items of a precomputed InChI and AuxInfo
+  private static final String INCHI_FIELD   = "InChI";
+  private static final String AUXINFO_FIELD = "AuxInfo";
+
+  private static LruCache<String, String> resultCache;
+
+  // the output line of a record on a worker thread
+  private static final ThreadLocal<StringBuilder> lineBuffer = new ThreadLocal<StringBuilder>() {
+    @Override
+    protected StringBuilder initialValue() {
+      return new StringBuilder(256);
+    }
+  };
+  private static       InChIMetalArch     engine;
+  private static       Stats              stats;
+
+  // interval between progress lines with -stats
+  private static final long PROGRESS_INTERVAL_MS = 10000;
 
   private static int determineFormat(String val) {
     switch (val.toLowerCase(Locale.ROOT)) {
@@ -67,6 +113,17 @@ public class Main {
     return determineFormat(fname.substring(idx + 1));
   }
 
+  private static int parseNumber(String opt, String val, int min) {
+    try {
+      int num = Integer.parseInt(val);
+      if (num >= min)
+        return num;
+    } catch (NumberFormatException ignore) {
+    }
+    System.err.println("Argument error " + opt + ", expected a number >= " + min + ": " + val);
+    return -1;
+  }
+
   private static boolean processCommandLine(String[] args) {
     int j = 0;
     for (int i = 0; i < args.length; i++) {
@@ -81,6 +138,135 @@ public class Main {
           return false;
         }
         fmt = determineFormat(val);
+      } else if (args[i].startsWith("-threads")) {
+        String val;
+        if (args[i].startsWith("-threads="))
+          val = args[i].substring(9);
+        else if (i + 1 < args.length)
+          val = args[++i];
+        else {
+          System.err.println("Argument error -threads <num>");
+          return false;
+        }
+        if ((threads = parseNumber("-threads <num>", val, 1)) < 0)
+          return false;
+      } else if (args[i].startsWith("-timeout")) {
+        String val;
+        if (args[i].startsWith("-timeout="))
+          val = args[i].substring(9);
+        else if (i + 1 < args.length)
+          val = args[++i];
+        else {
+          System.err.println("Argument error -timeout <ms>");
+          return false;
+        }
+        if ((timeout = parseNumber("-timeout <ms>", val, 0)) < 0)
+          return false;
+      } else if (args[i].startsWith("-maxleaves")) {
+        String val;
+        if (args[i].startsWith("-maxleaves="))
+          val = args[i].substring(11);
+        else if (i + 1 < args.length)
+          val = args[++i];
+        else {
+          System.err.println("Argument error -maxleaves <num>");
+          return false;
+        }
+        if ((maxLeaves = parseNumber("-maxleaves <num>", val, 0)) < 0)
+          return false;
+      } else if (args[i].startsWith("-procs")) {
+        String val;
+        if (args[i].startsWith("-procs="))
+          val = args[i].substring(7);
+        else if (i + 1 < args.length)
+          val = args[++i];
+        else {
+          System.err.println("Argument error -procs <num>");
+          return false;
+        }
+        if ((procs = parseNumber("-procs <num>", val, 1)) < 0)
+          return false;
+      } else if (args[i].startsWith("-rejects")) {
+        if (args[i].startsWith("-rejects="))
+          rejects = new File(args[i].substring(9));
+        else if (i + 1 < args.length)
+          rejects = new File(args[++i]);
+        else {
+          System.err.println("Argument error -rejects <file>");
+          return false;
+        }
+      } else if (args[i].startsWith("-shard")) {
+        String val;
+        if (args[i].startsWith("-shard="))
+          val = args[i].substring(7);
+        else if (i + 1 < args.length)
+          val = args[++i];
+        else {
+          System.err.println("Argument error -shard <i/N>");
+          return false;
+        }
+        if ((shard = Shard.parse(val)) == null)
+          return false;
+      } else if (args[i].equals("-merge")) {
+        // the remaining arguments are the output of each shard
+        mergeFiles = new ArrayList<>();
+        while (i + 1 < args.length)
+          mergeFiles.add(new File(args[++i]));
+      } else if (args[i].equals("-unordered")) {
+        ordered = false;
+      } else if (args[i].equals("-auxsym")) {
+        auxsym = true;
+      } else if (args[i].startsWith("-inchicache")) {
+        String val;
+        if (args[i].startsWith("-inchicache="))
+          val = args[i].substring(12);
+        else if (i + 1 < args.length)
+          val = args[++i];
+        else {
+          System.err.println("Argument error -inchicache <size>");
+          return false;
+        }
+        if ((inchiCacheSize = parseNumber("-inchicache <size>", val, 0)) < 0)
+          return false;
+      } else if (args[i].startsWith("-cache")) {
+        String val;
+        if (args[i].startsWith("-cache="))
+          val = args[i].substring(7);
+        else if (i + 1 < args.length)
+          val = args[++i];
+        else {
+          System.err.println("Argument error -cache <size>");
+          return false;
+        }
+        if ((resultCacheSize = parseNumber("-cache <size>", val, 0)) < 0)
+          return false;
+      } else if (args[i].startsWith("-serve")) {
+        String val;
+        if (args[i].startsWith("-serve="))
+          val = args[i].substring(7);
+        else if (i + 1 < args.length)
+          val = args[++i];
+        else {
+          System.err.println("Argument error -serve {<port>|-}");
+          return false;
+        }
+        serve = true;
+        if (!val.equals("-") && (servePort = parseNumber("-serve <port>", val, 0)) < 0)
+          return false;
+      } else if (args[i].equals("-status")) {
+        serveStatus = true;
+      } else if (args[i].equals("-stats")) {
+        showStats = true;
+      } else if (args[i].equals("-lite")) {
+        lite = true;
+      } else if (args[i].equals("-conformers")) {
+        conformers = true;
+      } else if (args[i].equals("-distinct")) {
+        distinct = true;
+      } else if (args[i].equals("-precomputed")) {
+        precomputed = true;
+      } else if (args[i].equals("-enumerate")) {
+        enumerate = true;
       } else if (args[i].equals("-RecMet")) {
         options.add(INCHI_OPTION.RecMet);
       } else if (args[i].equals("-FixedH")) {
@@ -93,6 +279,7 @@ public class Main {
             else {
               try {
                 in = new FileInputStream(args[i]);
+                infile = new File(args[i]);
               } catch (FileNotFoundException ex) {
                 System.err.println("File not found: " + args[i]);
                 return false;
@@ -115,16 +302,83 @@ public class Main {
         }
       }
     }
+    if (enumerate && (conformers || precomputed || serve)) {
+      System.err.println("Argument error -enumerate can not be used with -conformers, -precomputed or -serve");
+      return false;
+    }
+    if (procs > 0 && (conformers || enumerate || serve || showStats)) {
+      System.err.println("Argument error -procs can not be used with -conformers, -enumerate, -serve or -stats");
+      return false;
+    }
+    if (shard != null && (!ordered || conformers || serve)) {
+      System.err.println("Argument error -shard can not be used with -unordered, -conformers or -serve");
+      return false;
+    }
+    if (serveStatus && !serve) {
+      System.err.println("Argument error -status requires -serve");
+      return false;
+    }
+    if (rejects != null && procs == 0) {
+      System.err.println("Argument error -rejects requires -procs");
+      return false;
+    }
     if (out == null)
       out = System.out;
-    return in != null;
+    return in != null || serve || mergeFiles != null;
   }
 
   private static void displayUsage() {
     System.err.println("Copyright (c) 2019 NextMove Software");
     System.err.println("InChI Metal Arch\n");
     System.err.println("Usage:");
-    System.err.println("  java -jar inchi-ma.jar [-fmt {SMI|SDF} -RecMet -FixedH] <infile> [<outfile>]\n");
+    System.err.println("  java -jar inchi-ma.jar [-fmt {SMI|SDF} -RecMet -FixedH] [options] <infile> [<outfile>]");
+    System.err.println("  java -jar inchi-ma.jar [options] -serve {<port>|-}");
+    System.err.println("  java -jar inchi-ma.jar -merge <shard1.txt> ... <shardN.txt>\n");
+    System.err.println("Options:");
+    System.err.println("  -threads <num>  process records on <num> worker threads, default 1");
+    System.err.println("  -unordered      with -threads, write results as they complete rather than in input order");
+    System.err.println("  -timeout <ms>   abandon (and report) a record that takes longer than <ms>, the");
+    System.err.println("                  run continues without it, default 0 (no limit), a record stuck");
+    System.err.println("                  in the native InChI library stalls the other threads, see -procs");
+    System.err.println("  -maxleaves <num>");
+    System.err.println("                  fail a record if the search for the configuration of a symmetric");
+    System.err.println("                  centre visits more than <num> permutations, default 0 (no limit)");
+    System.err.println("  -procs <num>    process records in <num> worker processes (JVMs) so a crash in the");
+    System.err.println("                  native InChI library only loses one record, a worker that exits (or");
+    System.err.println("                  exceeds -timeout) is restarted and its record rejected");
+    System.err.println("  -rejects <file> with -procs, write the rejected records to <file>");
+    System.err.println("  -shard <i/N>    only process the i'th of N shares of the input (1 <= i <= N), a");
+    System.err.println("                  byte range of a file or every N'th record of STDIN, output lines");
+    System.err.println("                  are keyed so the shares can be put back in input order by -merge");
+    System.err.println("  -merge <files>  merge the output of the shares of a -shard run into input order on");
+    System.err.println("                  STDOUT, the remaining arguments are the files");
+    System.err.println("  -auxsym         take symmetry classes from the InChI AuxInfo (effective with -RecMet)");
+    System.err.println("  -inchicache <size>");
+    System.err.println("                  cache the InChI of up to <size> structures, metal stereoisomers");
+    System.err.println("                  of the same structure then share one InChI call");
+    System.err.println("  -cache <size>   cache the result of up to <size> distinct inputs, for inputs");
+    System.err.println("                  with many repeated structures");
+    System.err.println("  -stats          report progress and a summary of throughput and per-stage");
+    System.err.println("                  latencies (p50/p99/max) on STDERR");
+    System.err.println("  -lite           read 3D V2000 molfiles with a minimal reader, other records fall");
+    System.err.println("                  back to the full CDK reader");
+    System.err.println("  -conformers     consecutive SDfile records with the same connection table and");
+    System.err.println("                  tetrahedral/double bond stereo are conformers, the InChI is");
+    System.err.println("                  generated once and only the /ma layer for each");
+    System.err.println("  -distinct       with -conformers, only write the first conformer with each");
+    System.err.println("                  distinct InChI");
+    System.err.println("  -precomputed    only compute the /ma layer of an existing InChI and AuxInfo (no");
+    System.err.println("                  InChI calls), SMILES lines are 'SMILES InChI AuxInfo [title]' and");
+    System.err.println("                  SDfile records have '" + INCHI_FIELD + "' and '" + AUXINFO_FIELD + "' data items, the atom");
+    System.err.println("                  order must be the one the InChI was generated from");
+    System.err.println("  -enumerate      write a line for every distinct stereoisomer of the metal centres");
+    System.err.println("                  (their configuration in the input is ignored)");
+    System.err.println("  -serve {<port>|-}");
+    System.err.println("                  stay resident and serve records (per -fmt) sent to <port> on the");
+    System.err.println("                  loopback interface (0 picks a free port), or on STDIN with '-', one");
+    System.err.println("                  result line (empty on failure) is written back per record");
+    System.err.println("  -status         with -serve, start each line written back with '+' and the result");
+    System.err.println("                  (which may be empty), '-' no result, or '!' the record failed\n");
     System.err.println("Examples:");
     System.err.println(" Processing a file of SMILES or SDfile");
     System.err.println("   java -jar inchi-ma.jar <input.smi>");
@@ -133,55 +387,668 @@ public class Main {
     System.err.println("   java -jar inchi-ma.jar -\n");
     System.err.println(" Processing SDfile from STDIN by specifying in format");
     System.err.println("   java -jar inchi-ma.jar -fmt SDF -\n");
+    System.err.println(" Processing a large file on 16 threads");
+    System.err.println("   java -jar inchi-ma.jar -threads 16 <input.smi> <output.txt>\n");
+    System.err.println(" Processing a large file in 8 worker processes, keeping records that crash");
+    System.err.println("   java -jar inchi-ma.jar -procs 8 -rejects <rejects.smi> <input.smi> <output.txt>\n");
+    System.err.println(" Splitting a file over two machines and merging the results");
+    System.err.println("   java -jar inchi-ma.jar -shard 1/2 <input.smi> <output.1>");
+    System.err.println("   java -jar inchi-ma.jar -shard 2/2 <input.smi> <output.2>");
+    System.err.println("   java -jar inchi-ma.jar -merge <output.1> <output.2> > <output.txt>\n");
+    System.err.println(" Adding the /ma layer to InChIs with their AuxInfo already computed");
+    System.err.println("   java -jar inchi-ma.jar -precomputed <input.smi> <output.txt>\n");
+    System.err.println(" Enumerating the metal stereoisomers of a virtual library");
+    System.err.println("   java -jar inchi-ma.jar -enumerate <input.smi> <output.txt>\n");
+    System.err.println(" Serving SMILES on port 7878");
+    System.err.println("   java -jar inchi-ma.jar -serve 7878\n");
     System.exit(1);
   }
 
+  private static String toOutputLine(IAtomContainer mol, String inchi) {
+    StringBuilder sb = new StringBuilder();
+    if (inchi != null)
+      sb.append(inchi);
+    if (mol.getTitle() != null)
+      sb.append('\t').append(mol.getTitle());
+    return sb.toString();
+  }
+
+  private static void appendTitle(Appendable out, IAtomContainer mol) throws IOException {
+    if (mol.getTitle() != null)
+      out.append('\t').append(mol.getTitle());
+  }
+
+  /**
+   * The output line for a record that could not be processed at all (it
+   * was abandoned, its worker threw or its worker process exited), the same
+   * as a record whose InChI could not be generated: a tab and the title.
+   *
+   * @param record the text of the record
+   * @return the line
+   */
+  private static String failedLine(String record) {
+    String title = fmt == SDFFMT ? molfileTitle(record) : smilesTitle(record);
+    return title != null ? '\t' + title : "";
+  }
+
+  // the title as the SMILES parser reads it, after the SMILES (and any
+  // CXSMILES layers) and one space or tab
+  private static String smilesTitle(String line) {
+    int pos = 0;
+    int len = line.length();
+    while (pos < len && line.charAt(pos) != ' ' && line.charAt(pos) != '\t')
+      pos++;
+    if (pos++ == len)
+      return null;
+    if (pos < len && line.charAt(pos) == '|') {
+      int end = line.indexOf('|', pos + 1);
+      if (end < 0)
+        return null;
+      pos = end + 1;
+      if (pos < len && (line.charAt(pos) == ' ' || line.charAt(pos) == '\t'))
+        pos++;
+    }
+    return line.substring(pos);
+  }
+
+  // the first line of a molfile, null if empty as the molfile readers
+  private static String molfileTitle(String molfile) {
+    int end = 0;
+    while (end < molfile.length() && molfile.charAt(end) != '\n' && molfile.charAt(end) != '\r')
+      end++;
+    return end > 0 ? molfile.substring(0, end) : null;
+  }
+
+  // a line for each metal stereoisomer, false if there were none
+  private static boolean writeIsomers(IAtomContainer mol, Appendable out) throws IOException {
+    Iterator<String> isomers = engine.enumerate(mol);
+    boolean          first   = true;
+    while (isomers.hasNext()) {
+      if (!first)
+        out.append('\n');
+      out.append(isomers.next());
+      appendTitle(out, mol);
+      first = false;
+    }
+    return !first;
+  }
+
+  // count a record once, an abandoned record was already counted as failed
+  private static void recordDone(long t0, boolean failed) {
+    if (stats == null || !Pipeline.settle())
+      return;
+    stats.record(Stats.Stage.RECORD, t0);
+    stats.processed();
+    if (failed)
+      stats.failed();
+  }
+
+  private static void recordSkipped() {
+    if (stats == null || !Pipeline.settle())
+      return;
+    stats.processed();
+    stats.skipped();
+  }
+
+  // a record the pipeline could not process, it was abandoned or its worker
+  // threw
+  private static void recordFailed() {
+    if (stats == null || !Pipeline.settle())
+      return;
+    stats.processed();
+    stats.failed();
+  }
+
+  private static String processSmiles(String line) {
+    StringBuilder sb = lineBuffer.get();
+    sb.setLength(0);
+    try {
+      return processSmiles(line, sb) ? sb.toString() : null;
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // StringBuilder does not throw
+    }
+  }
+
+  /**
+   * Write the output line (without a newline) for a SMILES line, the
+   * InChI is written straight to the output.
+   *
+   * @param line the SMILES line
+   * @param out  where to write the result
+   * @return a line was written, if false nothing was written
+   * @throws IOException the output could not be written
+   */
+  private static boolean processSmiles(String line, Appendable out) throws IOException {
+    if (precomputed) {
+      String result = processPrecomputedSmiles(line);
+      if (result == null)
+        return false;
+      out.append(result);
+      return true;
+    }
+    long t0 = stats != null ? System.nanoTime() : 0;
+    // the result cache is keyed on the SMILES (without title), lines with
+    // CXSMILES are not cached
+    String key = null;
+    if (resultCache != null) {
+      int pos = 0;
+      while (pos < line.length() && line.charAt(pos) != ' ' && line.charAt(pos) != '\t')
+        pos++;
+      if (pos > 0 && (pos + 1 >= line.length() || line.charAt(pos + 1) != '|')) {
+        key = line.substring(0, pos);
+        String inchi = resultCache.get(key);
+        if (inchi != null) {
+          recordDone(t0, false);
+          out.append(inchi);
+          if (pos < line.length())
+            out.append('\t').append(line, pos + 1, line.length());
+          return true;
+        }
+      }
+    }
+    IAtomContainer mol;
+    try {
+      mol = engine.parseSmiles(line);
+    } catch (InvalidSmilesException e) {
+      System.err.println("BAD SMILES: " + line);
+      recordDone(t0, true);
+      return false;
+    }
+    if (stats != null)
+      stats.record(Stats.Stage.PARSE, t0);
+    if (enumerate) {
+      boolean written = writeIsomers(mol, out);
+      recordDone(t0, !written);
+      return written;
+    }
+    // the text screen skips looking at the stereo of most SMILES
+    boolean metalGeometry = InChIMetalArch.hasMetalGeometry(line) &&
+                            InChIMetalArch.hasMetalGeometry(mol);
+    if (key != null) {
+      String inchi = engine.generate(mol, metalGeometry);
+      if (inchi != null) {
+        resultCache.put(key, inchi);
+        out.append(inchi);
+      }
+      recordDone(t0, inchi == null);
+    } else {
+      recordDone(t0, !engine.generate(mol, metalGeometry, out));
+    }
+    appendTitle(out, mol);
+    return true;
+  }
+
+  /**
+   * Split a line into SMILES, InChI, AuxInfo and title (may be null)
+   * columns, the CXSMILES layers are part of the SMILES column.
+   *
+   * @param line the line
+   * @return the columns, null if there are not enough
+   */
+  private static String[] splitPrecomputed(String line) {
+    String[] cols = new String[4];
+    int      col  = 0;
+    int      beg  = 0;
+    while (col < 3) {
+      int end = beg;
+      while (end < line.length() && line.charAt(end) != ' ' && line.charAt(end) != '\t')
+        end++;
+      if (end == beg)
+        return null;
+      if (col == 1 && line.charAt(beg) == '|')
+        cols[0] = line.substring(0, end);
+      else
+        cols[col++] = line.substring(beg, end);
+      beg = end + 1;
+    }
+    cols[3] = beg < line.length() ? line.substring(beg) : null;
+    return cols;
+  }
+
+  private static String processPrecomputedSmiles(String line) {
+    long     t0   = stats != null ? System.nanoTime() : 0;
+    String[] cols = splitPrecomputed(line);
+    if (cols == null) {
+      System.err.println("ERROR: Expected SMILES, InChI and AuxInfo: " + line);
+      recordDone(t0, true);
+      return null;
+    }
+    try {
+      IAtomContainer mol = engine.parseSmiles(cols[0]);
+      if (stats != null)
+        stats.record(Stats.Stage.PARSE, t0);
+      if (cols[3] != null)
+        mol.setTitle(cols[3]);
+      String inchi = engine.generate(mol, cols[1], cols[2]);
+      recordDone(t0, inchi == null);
+      return toOutputLine(mol, inchi);
+    } catch (InvalidSmilesException e) {
+      System.err.println("BAD SMILES: " + line);
+      recordDone(t0, true);
+      return null;
+    }
+  }
+
+  // the /ma layer for the InChI and AuxInfo SD data items of a record
+  private static String generatePrecomputed(IAtomContainer mol) {
+    String inchi   = mol.getProperty(INCHI_FIELD);
+    String auxinfo = mol.getProperty(AUXINFO_FIELD);
+    if (inchi == null || auxinfo == null) {
+      System.err.println("ERROR: Missing " + INCHI_FIELD + " or " + AUXINFO_FIELD +
+                         " data item: " + mol.getTitle());
+      return null;
+    }
+    return engine.generate(mol, inchi.trim(), auxinfo.trim());
+  }
+
+  private static String processMolecule(IAtomContainer mol) {
+    StringBuilder sb = lineBuffer.get();
+    sb.setLength(0);
+    try {
+      return processMolecule(mol, sb) ? sb.toString() : null;
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // StringBuilder does not throw
+    }
+  }
+
+  /**
+   * Write the output line (without a newline) for a molecule from a molfile,
+   * the InChI is written straight to the output.
+   *
+   * @param mol the molecule
+   * @param out where to write the result
+   * @return a line was written, if false nothing was written
+   * @throws IOException the output could not be written
+   */
+  private static boolean processMolecule(IAtomContainer mol, Appendable out) throws IOException {
+    long t0 = stats != null ? System.nanoTime() : 0;
+    if (!GeometryUtil.has3DCoordinates(mol)) {
+      System.err.println("Skipping non-3D record: " + mol.getTitle());
+      recordSkipped();
+      return false;
+    }
+    // the result cache is keyed on the connection table (with coordinates)
+    // before perception
+    String key = null;
+    if (resultCache != null) {
+      key = StructureKey.withoutMetalGeometry(mol);
+      String inchi = resultCache.get(key);
+      if (inchi != null) {
+        recordDone(t0, false);
+        out.append(inchi);
+        appendTitle(out, mol);
+        return true;
+      }
+    }
+    long t1 = stats != null ? System.nanoTime() : 0;
+    PerceiveFrom3d.perceive(mol);
+    if (stats != null)
+      stats.record(Stats.Stage.PERCEIVE, t1);
+    if (enumerate) {
+      boolean written = writeIsomers(mol, out);
+      recordDone(t0, !written);
+      return written;
+    }
+    if (key != null || precomputed) {
+      String inchi = precomputed ? generatePrecomputed(mol) : engine.generate(mol);
+      if (inchi != null) {
+        if (key != null)
+          resultCache.put(key, inchi);
+        out.append(inchi);
+      }
+      recordDone(t0, inchi == null);
+    } else {
+      recordDone(t0, !engine.generate(mol, out));
+    }
+    appendTitle(out, mol);
+    return true;
+  }
+
+  // molfile parsing happens in the iterator, time it separately to the record
+  private static IAtomContainer nextMolecule(IteratingSDFReader sdf) {
+    long           t0  = stats != null ? System.nanoTime() : 0;
+    IAtomContainer mol = sdf.hasNext() ? sdf.next() : null;
+    if (stats != null && mol != null)
+      stats.record(Stats.Stage.PARSE, t0);
+    return mol;
+  }
+
+  private static IAtomContainer readMolfile(String molfile) {
+    // the minimal reader skips the data items
+    if (lite && !precomputed) {
+      long           t0  = stats != null ? System.nanoTime() : 0;
+      IAtomContainer mol = LiteMolfileReader.read(molfile);
+      if (mol != null) {
+        if (stats != null)
+          stats.record(Stats.Stage.PARSE, t0);
+        return mol;
+      }
+    }
+    try (IteratingSDFReader sdfr = new IteratingSDFReader(new StringReader(molfile), builder, true)) {
+      IAtomContainer mol = nextMolecule(sdfr);
+      if (mol == null)
+        System.err.println("ERROR: Could not read molfile");
+      return mol;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static String processMolfile(String molfile) {
+    IAtomContainer mol = readMolfile(molfile);
+    return mol != null ? processMolecule(mol) : null;
+  }
+
+  // a run of records with the same connection table, the InChI, numbering
+  // and symmetry is generated once for each stereoisomer (consecutive
+  // records with the same tetrahedral/double bond stereo) and each conformer
+  // only needs its geometry perceived and /ma layer
+  private static String processConformers(List<IAtomContainer> run) {
+    long                 t0     = stats != null ? System.nanoTime() : 0;
+    List<IAtomContainer> mols   = new ArrayList<>(run.size());
+    List<String>         stereo = new ArrayList<>(run.size());
+    for (IAtomContainer mol : run) {
+      if (!GeometryUtil.has3DCoordinates(mol)) {
+        System.err.println("Skipping non-3D record: " + mol.getTitle());
+        continue;
+      }
+      long t1 = stats != null ? System.nanoTime() : 0;
+      stereo.add(StructureKey.stereoFrom3d(mol));
+      PerceiveFrom3d.perceive(mol);
+      if (stats != null)
+        stats.record(Stats.Stage.PERCEIVE, t1);
+      mols.add(mol);
+    }
+    if (mols.isEmpty()) {
+      recordRun(t0, run.size(), null);
+      return null;
+    }
+    List<String> inchis;
+    if (precomputed) {
+      inchis = new ArrayList<>(mols.size());
+      for (IAtomContainer mol : mols)
+        inchis.add(generatePrecomputed(mol));
+    } else {
+      inchis = new ArrayList<>(mols.size());
+      int beg = 0;
+      while (beg < mols.size()) {
+        int end = beg + 1;
+        while (end < mols.size() && stereo.get(end).equals(stereo.get(beg)))
+          end++;
+        inchis.addAll(engine.generateConformers(mols.subList(beg, end)));
+        beg = end;
+      }
+    }
+    recordRun(t0, run.size() - mols.size(), inchis);
+    Set<String>   seen  = new HashSet<>();
+    StringBuilder sb    = new StringBuilder();
+    boolean       first = true;
+    for (int i = 0; i < mols.size(); i++) {
+      String inchi = inchis.get(i);
+      if (distinct && !seen.add(inchi))
+        continue;
+      if (!first)
+        sb.append('\n');
+      sb.append(toOutputLine(mols.get(i), inchi));
+      first = false;
+    }
+    return sb.toString();
+  }
+
+  // the output lines of a conformer run that could not be processed, as if
+  // the InChI of each conformer failed
+  private static String failedRun(List<IAtomContainer> run) {
+    List<String>  inchis = new ArrayList<>();
+    StringBuilder sb     = new StringBuilder();
+    for (IAtomContainer mol : run) {
+      if (!GeometryUtil.has3DCoordinates(mol))
+        continue;
+      if (!inchis.isEmpty())
+        sb.append('\n');
+      sb.append(toOutputLine(mol, null));
+      inchis.add(null);
+    }
+    recordRun(0, run.size() - inchis.size(), inchis);
+    return inchis.isEmpty() ? null : sb.toString();
+  }
+
+  // count the records of a conformer run once, as for recordDone
+  private static void recordRun(long t0, int skipped, List<String> inchis) {
+    if (stats == null || !Pipeline.settle())
+      return;
+    for (int i = 0; i < skipped; i++) {
+      stats.processed();
+      stats.skipped();
+    }
+    if (inchis != null) {
+      for (String inchi : inchis) {
+        stats.processed();
+        if (inchi == null)
+          stats.failed();
+      }
+    }
+    if (t0 != 0)
+      stats.record(Stats.Stage.RECORD, t0);
+  }
+
+  /**
+   * Groups the molfiles from a source of records into runs of consecutive
+   * records with the same connection table. The records are parsed on the
+   * reader thread, the only serial stage, the stereo that splits a run into
+   * stereoisomers is perceived on the workers ({@link #processConformers}).
+   */
+  private static final class ConformerRuns<T> implements Pipeline.Source<List<IAtomContainer>> {
+
+    private final Pipeline.Source<T> records;
+    private       IAtomContainer     pending;
+    private       String             pendingKey;
+
+    private ConformerRuns(Pipeline.Source<T> records) {
+      this.records = records;
+    }
+
+    @Override
+    public List<IAtomContainer> next() throws IOException {
+      if (pending == null)
+        advance();
+      if (pending == null)
+        return null;
+      List<IAtomContainer> run = new ArrayList<>();
+      String               key = pendingKey;
+      do {
+        run.add(pending);
+        advance();
+      } while (pending != null && pendingKey.equals(key));
+      return run;
+    }
+
+    private void advance() throws IOException {
+      T record;
+      while ((record = records.next()) != null) {
+        IAtomContainer mol = readMolfile(record.toString());
+        if (mol != null) {
+          pending = mol;
+          pendingKey = StructureKey.connectionTable(mol);
+          return;
+        }
+      }
+      pending = null;
+      pendingKey = null;
+    }
+  }
+
   private static void processSmilesFile(BufferedWriter wtr,
-                                        BufferedReader brdr) throws IOException {
+                                        final BufferedReader brdr) throws IOException {
+    if (pipelined()) {
+      runPipeline(new Pipeline.Source<String>() {
+        @Override
+        public String next() throws IOException {
+          return brdr.readLine();
+        }
+      }, new Pipeline.Worker<String>() {
+        @Override
+        public String process(String line) {
+          return processSmiles(line);
+        }
+      }, wtr);
+      return;
+    }
     String line;
     while ((line = brdr.readLine()) != null) {
-      try {
-        IAtomContainer mol   = smipar.parseSmiles(line);
-        String         inchi = InChIMetalArch.toInChI(mol, options);
-        if (inchi != null)
-          wtr.write(inchi);
-        if (mol.getTitle() != null) {
-          wtr.write('\t');
-          wtr.write(mol.getTitle());
+      if (processSmiles(line, wtr))
+        wtr.write('\n');
+    }
+  }
+
+  private static void processMappedSmilesFile(BufferedWriter wtr,
+                                              final MappedLineReader rdr) throws IOException {
+    if (pipelined()) {
+      // only line boundaries are found on the reader thread, the lines are
+      // decoded and parsed on the workers
+      runPipeline(new Pipeline.Source<MappedLineReader.Line>() {
+        @Override
+        public MappedLineReader.Line next() throws IOException {
+          return rdr.next();
         }
+      }, new Pipeline.Worker<MappedLineReader.Line>() {
+        @Override
+        public String process(MappedLineReader.Line line) {
+          return processSmiles(line.toString());
+        }
+      }, wtr);
+      return;
+    }
+    MappedLineReader.Line line;
+    while ((line = rdr.next()) != null) {
+      if (processSmiles(line.toString(), wtr))
         wtr.write('\n');
-      } catch (InvalidSmilesException e) {
-        System.err.println("BAD SMILES: " + line);
-      }
     }
   }
 
   private static void processSdfile(BufferedWriter wtr,
-                                    IteratingSDFReader sdf) throws IOException {
-    while (sdf.hasNext()) {
-      IAtomContainer mol = sdf.next();
+                                    final IteratingSDFReader sdf) throws IOException {
+    IAtomContainer mol;
+    while ((mol = nextMolecule(sdf)) != null) {
+      if (processMolecule(mol, wtr))
+        wtr.write('\n');
+    }
+  }
 
-      if (!GeometryUtil.has3DCoordinates(mol)) {
-        System.err.println("Skipping non-3D record: " + mol.getTitle());
-        continue;
+  // the reader thread only splits the records on '$$$$', the molfiles are
+  // parsed, perceived and the InChI generated on the workers
+  private static <T> void processSdfRecords(BufferedWriter wtr,
+                                            Pipeline.Source<T> source) throws IOException {
+    if (conformers) {
+      // records are parsed on the reader thread to find the runs, with many
+      // threads this caps the throughput at the parse rate (see -lite)
+      Pipeline<List<IAtomContainer>> pipeline = new Pipeline<>(threads, ordered, timeout);
+      pipeline.setFailed(new Pipeline.Worker<List<IAtomContainer>>() {
+        @Override
+        public String process(List<IAtomContainer> run) {
+          return failedRun(run);
+        }
+      });
+      pipeline.run(new ConformerRuns<>(source), new Pipeline.Worker<List<IAtomContainer>>() {
+        @Override
+        public String process(List<IAtomContainer> run) {
+          return processConformers(run);
+        }
+      }, wtr);
+      return;
+    }
+    runPipeline(source, new Pipeline.Worker<T>() {
+      @Override
+      public String process(T record) {
+        return processMolfile(record.toString());
       }
+    }, wtr);
+  }
 
-      PerceiveFrom3d.perceive(mol);
+  // records are processed on worker threads, a single worker with a timeout
+  // so the watchdog can abandon a record (or a leaf limit so the record
+  // number is reported), or in worker processes
+  private static boolean pipelined() {
+    return threads > 1 || timeout > 0 || maxLeaves > 0 || procs > 0 || shard != null;
+  }
 
-      String inchi = InChIMetalArch.toInChI(mol, options);
-      if (inchi != null)
-        wtr.write(inchi);
-      if (mol.getTitle() != null) {
-        wtr.write('\t');
-        wtr.write(mol.getTitle());
+  // with -procs the worker only runs in the child processes
+  private static <T> void runPipeline(Pipeline.Source<T> source,
+                                      Pipeline.Worker<T> worker,
+                                      BufferedWriter wtr) throws IOException {
+    Pipeline.Worker<T> failed = new Pipeline.Worker<T>() {
+      @Override
+      public String process(T record) {
+        recordFailed();
+        return failedLine(record.toString());
+      }
+    };
+    if (procs > 0) {
+      try (ProcessPool<T> pool = new ProcessPool<>(childArgs(), fmt == SDFFMT, timeout, rejects, failed)) {
+        runPipeline(source, pool, failed, procs, 0, wtr);
       }
-      wtr.write('\n');
+      return;
     }
+    runPipeline(source, worker, failed, threads, timeout, wtr);
+  }
+
+  // with -shard only the share's records are processed and the output is keyed
+  private static <T> void runPipeline(Pipeline.Source<T> source,
+                                      Pipeline.Worker<T> worker,
+                                      Pipeline.Worker<T> failed,
+                                      int nThreads,
+                                      long timeout,
+                                      BufferedWriter wtr) throws IOException {
+    if (shard != null) {
+      Pipeline<Shard.Record<T>> pipeline = new Pipeline<>(nThreads, ordered, timeout);
+      pipeline.setFailed(shard.worker(failed));
+      pipeline.run(shard.select(source), shard.worker(worker), wtr);
+    } else {
+      Pipeline<T> pipeline = new Pipeline<>(nThreads, ordered, timeout);
+      pipeline.setFailed(failed);
+      pipeline.run(source, worker, wtr);
+    }
+  }
+
+  // the options of a worker process, it processes one record at a time
+  private static List<String> childArgs() {
+    List<String> args = new ArrayList<>();
+    args.add("-fmt");
+    args.add(fmt == SDFFMT ? "SDF" : "SMI");
+    for (INCHI_OPTION opt : options)
+      args.add("-" + opt.name());
+    if (auxsym)
+      args.add("-auxsym");
+    if (inchiCacheSize > 0)
+      args.add("-inchicache=" + inchiCacheSize);
+    if (resultCacheSize > 0)
+      args.add("-cache=" + resultCacheSize);
+    if (maxLeaves > 0)
+      args.add("-maxleaves=" + maxLeaves);
+    if (lite)
+      args.add("-lite");
+    if (precomputed)
+      args.add("-precomputed");
+    return args;
+  }
+
+  private static boolean isMappable() {
+    return infile != null && infile.isFile() && in instanceof FileInputStream;
   }
 
   private static void processInputStream(BufferedWriter wtr) {
     switch (fmt) {
       case SMIFMT:
+        // regular files are memory mapped, other input (STDIN, pipes) is
+        // read through a buffered reader
+        if (isMappable()) {
+          try (FileChannel channel = ((FileInputStream) in).getChannel()) {
+            processMappedSmilesFile(wtr, shard != null ? shard.lines(channel)
+                                                       : new MappedLineReader(channel));
+          } catch (IOException e) {
+            System.err.println("Low level IO Error: " + e.getMessage());
+          }
+          break;
+        }
         try (Reader rdr = new InputStreamReader(in, StandardCharsets.UTF_8);
              BufferedReader brdr = new BufferedReader(rdr)) {
           processSmilesFile(wtr, brdr);
@@ -190,6 +1057,36 @@ public class Main {
         }
         break;
       case SDFFMT:
+        // with -lite the records are also split out for the minimal reader
+        // when there is a single thread, and with -conformers to find runs
+        if ((pipelined() || lite || conformers) && isMappable()) {
+          try (FileChannel channel = ((FileInputStream) in).getChannel()) {
+            final MappedLineReader rdr = shard != null ? shard.records(channel)
+                                                       : new MappedLineReader(channel);
+            processSdfRecords(wtr, new Pipeline.Source<MappedLineReader.Line>() {
+              @Override
+              public MappedLineReader.Line next() throws IOException {
+                return rdr.nextRecord();
+              }
+            });
+          } catch (IOException e) {
+            System.err.println("Low level IO Error: " + e.getMessage());
+          }
+          break;
+        } else if (pipelined() || lite || conformers) {
+          try (Reader rdr = new InputStreamReader(in, StandardCharsets.UTF_8);
+               final BufferedReader brdr = new BufferedReader(rdr)) {
+            processSdfRecords(wtr, new Pipeline.Source<String>() {
+              @Override
+              public String next() throws IOException {
+                return Server.readSdfRecord(brdr);
+              }
+            });
+          } catch (IOException e) {
+            System.err.println("Low level IO Error: " + e.getMessage());
+          }
+          break;
+        }
         try (IteratingSDFReader sdfr = new IteratingSDFReader(in, builder, true)) {
           processSdfile(wtr, sdfr);
         } catch (IOException e) {
@@ -199,14 +1096,75 @@ public class Main {
     }
   }
 
+  private static void serve() {
+    Server server = new Server(new Pipeline.Worker<String>() {
+      @Override
+      public String process(String record) {
+        return fmt == SDFFMT ? processMolfile(record) : processSmiles(record);
+      }
+    }, fmt == SDFFMT, serveStatus);
+    try {
+      if (servePort < 0) {
+        server.serve(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)),
+                     new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+      } else {
+        server.listen(servePort);
+      }
+    } catch (IOException e) {
+      System.err.println("Low level IO Error: " + e.getMessage());
+    }
+  }
+
   public static void main(String[] args) {
     if (!processCommandLine(args))
       displayUsage();
+    if (mergeFiles != null) {
+      try (Writer wtr = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+        Shard.merge(mergeFiles, wtr);
+      } catch (IOException e) {
+        System.err.println("ERROR: Could not merge: " + e.getMessage());
+      }
+      return;
+    }
+    engine = new InChIMetalArch(options);
+    engine.setAuxInfoSymmetry(auxsym);
+    engine.setInChICacheSize(inchiCacheSize);
+    engine.setMaxLeaves(maxLeaves);
+    // the result of a precomputed record also depends on its InChI and
+    // AuxInfo, an enumerated record has many results
+    if (resultCacheSize > 0 && !precomputed && !enumerate)
+      resultCache = new LruCache<>(resultCacheSize);
+    Timer progress = null;
+    if (showStats) {
+      stats = new Stats();
+      engine.setStats(stats);
+      progress = new Timer("inchi-ma-progress", true);
+      progress.scheduleAtFixedRate(new TimerTask() {
+        @Override
+        public void run() {
+          stats.printProgress(System.err);
+        }
+      }, PROGRESS_INTERVAL_MS, PROGRESS_INTERVAL_MS);
+    }
+    if (serve) {
+      serve();
+      return;
+    }
     try (Writer wtr = new OutputStreamWriter(out, StandardCharsets.UTF_8);
          BufferedWriter bwtr = new BufferedWriter(wtr)) {
       processInputStream(bwtr);
     } catch (IOException e) {
       System.err.println("Low level IO Error");
     }
+    if (resultCache != null) {
+      long hits  = resultCache.hits();
+      long total = hits + resultCache.misses();
+      System.err.printf(Locale.ROOT, "Result cache: %d hits, %d misses (%.1f%% hit rate)%n",
+                        hits, total - hits, total != 0 ? 100.0 * hits / total : 0.0);
+    }
+    if (progress != null) {
+      progress.cancel();
+      stats.printSummary(System.err);
+    }
   }
 }
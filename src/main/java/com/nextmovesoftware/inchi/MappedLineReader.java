@@ -0,0 +1,319 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the lines (or '$$$$' terminated SDfile records) of a file by memory
+ * mapping it and finding the boundaries in the mapped bytes. Each line or
+ * record is handed out as a byte range of the mapping, nothing is copied or
+ * decoded until {@link Line#toString()} is called so that work can be done
+ * by the thread that processes it rather than the reader. Lines are
+ * terminated by '\n', '\r' or "\r\n" as in
+ * {@link java.io.BufferedReader#readLine()}.
+ *
+ * <p>The file is mapped in windows (of up to 1 GiB) so files larger than
+ * 2 GiB can be read, a line or record can not be longer than a window. A
+ * file can also be {@link #split} into byte ranges that start on a line (or
+ * {@link #splitRecords} on an SDfile record) so that each range can be read
+ * independently.</p>
+ */
+final class MappedLineReader {
+
+  private static final int WINDOW = 1 << 30;
+
+  /**
+   * A line of the file (without the line terminator) or a record (with the
+   * terminators), a byte range of the mapping.
+   */
+  static final class Line {
+    private final ByteBuffer buf;
+    private final int        off;
+    private final int        len;
+    private final long       pos;
+
+    private Line(ByteBuffer buf, int off, int len, long pos) {
+      this.buf = buf;
+      this.off = off;
+      this.len = len;
+      this.pos = pos;
+    }
+
+    /**
+     * @return the byte offset of the line in the file
+     */
+    long offset() {
+      return pos;
+    }
+
+    /**
+     * @return the number of bytes
+     */
+    int length() {
+      return len;
+    }
+
+    /**
+     * @return the bytes decoded as UTF-8
+     */
+    @Override
+    public String toString() {
+      byte[]     bytes = new byte[len];
+      ByteBuffer dup   = buf.duplicate();
+      dup.position(off);
+      dup.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+  }
+
+  private final FileChannel      channel;
+  private final long             end;
+  private final int              winSize;
+  private       MappedByteBuffer window;
+  private       long             winBeg;
+  private       int              winLen;
+  private       int              pos;
+
+  /**
+   * Read all the lines of a file.
+   *
+   * @param channel the file
+   * @throws IOException low level IO error
+   */
+  MappedLineReader(FileChannel channel) throws IOException {
+    this(channel, 0, channel.size());
+  }
+
+  /**
+   * Read the lines in a byte range of a file, the range should start at the
+   * beginning of a line (see {@link #split}).
+   *
+   * @param channel the file
+   * @param beg     start of the range (inclusive)
+   * @param end     end of the range (exclusive)
+   */
+  MappedLineReader(FileChannel channel, long beg, long end) {
+    this(channel, beg, end, WINDOW);
+  }
+
+  /**
+   * Read the lines in a byte range of a file mapping (at most) the given
+   * number of bytes at a time.
+   *
+   * @param channel the file
+   * @param beg     start of the range (inclusive)
+   * @param end     end of the range (exclusive)
+   * @param winSize the window size in bytes
+   */
+  MappedLineReader(FileChannel channel, long beg, long end, int winSize) {
+    if (winSize < 1)
+      throw new IllegalArgumentException("Window size must be positive");
+    this.channel = channel;
+    this.end = end;
+    this.winBeg = beg;
+    this.winSize = winSize;
+  }
+
+  /**
+   * Read the next line.
+   *
+   * @return the line, null if there are no more
+   * @throws IOException low level IO error or a line is too long
+   */
+  Line next() throws IOException {
+    while (true) {
+      if (window == null || pos >= winLen) {
+        long fpos = winBeg + pos;
+        if (fpos >= end)
+          return null;
+        map(fpos);
+      }
+      int i = pos;
+      while (i < winLen) {
+        byte b = window.get(i);
+        if (b == '\n' || b == '\r')
+          break;
+        i++;
+      }
+      // the line (or a "\r\n" terminator) may continue in the next window
+      if ((i == winLen || (i + 1 == winLen && window.get(i) == '\r')) &&
+          winBeg + winLen < end) {
+        if (pos == 0)
+          throw new IOException("Line too long at byte offset " + winBeg);
+        map(winBeg + pos);
+        continue;
+      }
+      Line line = new Line(window, pos, i - pos, winBeg + pos);
+      if (i < winLen) {
+        if (window.get(i) == '\r' && i + 1 < winLen && window.get(i + 1) == '\n')
+          i++;
+        i++;
+      }
+      pos = i;
+      return line;
+    }
+  }
+
+  /**
+   * Read the next SDfile record, the lines up to and including one that
+   * starts with '$$$$'. A final unterminated record is returned if it is not
+   * blank.
+   *
+   * @return the record, null if there are no more
+   * @throws IOException low level IO error or a record is too long
+   */
+  Line nextRecord() throws IOException {
+    outer:
+    while (true) {
+      if (window == null || pos >= winLen) {
+        long fpos = winBeg + pos;
+        if (fpos >= end)
+          return null;
+        map(fpos);
+      }
+      int     beg   = pos;
+      int     i     = pos;
+      boolean blank = true;
+      while (i < winLen) {
+        int lineBeg = i;
+        while (i < winLen) {
+          byte b = window.get(i);
+          if (b == '\n' || b == '\r')
+            break;
+          if (b != ' ' && b != '\t')
+            blank = false;
+          i++;
+        }
+        if ((i == winLen || (i + 1 == winLen && window.get(i) == '\r')) &&
+            winBeg + winLen < end) {
+          if (beg == 0)
+            throw new IOException("Record too long at byte offset " + winBeg);
+          map(winBeg + beg);
+          continue outer;
+        }
+        boolean delim = i - lineBeg >= 4 &&
+                        window.get(lineBeg) == '$' && window.get(lineBeg + 1) == '$' &&
+                        window.get(lineBeg + 2) == '$' && window.get(lineBeg + 3) == '$';
+        if (i < winLen) {
+          if (window.get(i) == '\r' && i + 1 < winLen && window.get(i + 1) == '\n')
+            i++;
+          i++;
+        }
+        if (delim) {
+          pos = i;
+          return new Line(window, beg, i - beg, winBeg + beg);
+        }
+      }
+      // the window ended on a line boundary, the record may continue
+      if (winBeg + winLen < end) {
+        if (beg == 0)
+          throw new IOException("Record too long at byte offset " + winBeg);
+        map(winBeg + beg);
+        continue;
+      }
+      pos = i;
+      return blank ? null : new Line(window, beg, i - beg, winBeg + beg);
+    }
+  }
+
+  private void map(long fpos) throws IOException {
+    winBeg = fpos;
+    winLen = (int) Math.min(winSize, end - fpos);
+    window = channel.map(FileChannel.MapMode.READ_ONLY, fpos, winLen);
+    pos = 0;
+  }
+
+  /**
+   * Split a file into (at most) n byte ranges of roughly equal size that
+   * each start at the beginning of a line. Range i is [bounds[i],
+   * bounds[i+1]), ranges may be empty if there are few long lines.
+   *
+   * @param channel the file
+   * @param n       the number of ranges
+   * @return the n+1 range boundaries
+   * @throws IOException low level IO error
+   */
+  static long[] split(FileChannel channel, int n) throws IOException {
+    long   size   = channel.size();
+    long[] bounds = new long[n + 1];
+    bounds[n] = size;
+    ByteBuffer buf = ByteBuffer.allocate(4096);
+    for (int k = 1; k < n; k++) {
+      long pos = Math.max(bounds[k - 1], size * k / n);
+      bounds[k] = pos == 0 ? 0 : nextLineStart(channel, pos - 1, size, buf);
+    }
+    return bounds;
+  }
+
+  /**
+   * Split an SDfile into (at most) n byte ranges of roughly equal size that
+   * each start at the beginning of a record (after a '$$$$' line). Range i
+   * is [bounds[i], bounds[i+1]), ranges may be empty if there are few
+   * records.
+   *
+   * @param channel the file
+   * @param n       the number of ranges
+   * @return the n+1 range boundaries
+   * @throws IOException low level IO error
+   */
+  static long[] splitRecords(FileChannel channel, int n) throws IOException {
+    long   size   = channel.size();
+    long[] bounds = new long[n + 1];
+    bounds[n] = size;
+    ByteBuffer buf = ByteBuffer.allocate(4096);
+    for (int k = 1; k < n; k++) {
+      long pos = Math.max(bounds[k - 1], size * k / n);
+      bounds[k] = pos == 0 ? 0 : nextRecordStart(channel, pos - 1, size, buf);
+    }
+    return bounds;
+  }
+
+  // position after the first '$$$$' line that starts after 'pos'
+  private static long nextRecordStart(FileChannel channel, long pos, long size,
+                                      ByteBuffer buf) throws IOException {
+    ByteBuffer head = ByteBuffer.allocate(4);
+    long       line = nextLineStart(channel, pos, size, buf);
+    while (line < size) {
+      long next = nextLineStart(channel, line, size, buf);
+      if (next - line >= 4) {
+        head.clear();
+        channel.read(head, line);
+        if (head.get(0) == '$' && head.get(1) == '$' && head.get(2) == '$' && head.get(3) == '$')
+          return next;
+      }
+      line = next;
+    }
+    return size;
+  }
+
+  // position after the first line terminator at or after 'pos'
+  private static long nextLineStart(FileChannel channel, long pos, long size,
+                                    ByteBuffer buf) throws IOException {
+    boolean cr = false;
+    while (pos < size) {
+      buf.clear();
+      int n = channel.read(buf, pos);
+      if (n <= 0)
+        break;
+      for (int i = 0; i < n; i++, pos++) {
+        byte b = buf.get(i);
+        if (cr)
+          return b == '\n' ? pos + 1 : pos;
+        if (b == '\n')
+          return pos + 1;
+        if (b == '\r')
+          cr = true;
+      }
+    }
+    return size;
+  }
+}
@@ -0,0 +1,400 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads records on one thread, fans them out to a number of worker threads
+ * and writes the results on the calling thread. Results are either written in
+ * input order, held in a reorder buffer until their predecessors are done, or
+ * as soon as they are available. The number of records in flight (queued,
+ * being processed or waiting to be reordered) is capped so memory use does
+ * not depend on the input size, the reader simply blocks until the writer
+ * catches up.
+ * <p>
+ * With a timeout a watchdog abandons any record that a worker has spent
+ * longer than the timeout on, it is reported (with its index and first line)
+ * and its line is the same as any other failed record ({@link #setFailed}).
+ * The worker is replaced so the rest of the stream continues at full width.
+ * Java can not stop a thread safely so the abandoned thread runs until its
+ * current call returns and then exits, its result is discarded and it can
+ * not {@link #settle} the record. A record stuck in the native InChI library
+ * holds the library's global lock and the replacement workers stall on
+ * their next InChI call until it returns, only a worker process
+ * ({@link ProcessPool}) can be killed to recover from a native hang.
+ *
+ * @param <T> the record type
+ */
+final class Pipeline<T> {
+
+  /**
+   * Provides the records to process.
+   */
+  interface Source<T> {
+    /**
+     * @return the next record, or null if there are no more
+     */
+    T next() throws IOException;
+  }
+
+  /**
+   * Processes a record into a line of output, this is called concurrently so
+   * must be thread-safe.
+   */
+  interface Worker<T> {
+    /**
+     * @param record the record
+     * @return the output line (no newline), or null to write nothing
+     */
+    String process(T record);
+  }
+
+  // the outcome of a record is claimed once, by its worker or the watchdog
+  private static final int RUNNING   = 0;
+  private static final int SETTLED   = 1;
+  private static final int ABANDONED = 2;
+
+  private static final class Job<T> {
+    private final long          idx;
+    private final T             record;
+    private final AtomicInteger state = new AtomicInteger(RUNNING);
+    private       String        result;
+
+    private Job(long idx, T record) {
+      this.idx = idx;
+      this.record = record;
+    }
+  }
+
+  // the record a worker thread is on
+  private static final ThreadLocal<Job<?>> current = new ThreadLocal<>();
+
+  private final int       nThreads;
+  private final boolean   ordered;
+  private final int       capacity;
+  private final long      timeout;
+  private       Worker<T> failed;
+
+  /**
+   * Create a new pipeline.
+   *
+   * @param nThreads number of worker threads
+   * @param ordered  write results in input order
+   */
+  Pipeline(int nThreads, boolean ordered) {
+    this(nThreads, ordered, 0);
+  }
+
+  /**
+   * Create a new pipeline with a time budget per record.
+   *
+   * @param nThreads number of worker threads
+   * @param ordered  write results in input order
+   * @param timeout  abandon a record after this many milliseconds, 0 for no
+   *                 limit
+   */
+  Pipeline(int nThreads, boolean ordered, long timeout) {
+    if (nThreads < 1)
+      throw new IllegalArgumentException("Need at least one worker thread");
+    if (timeout < 0)
+      throw new IllegalArgumentException("Timeout must not be negative");
+    this.nThreads = nThreads;
+    this.ordered = ordered;
+    this.capacity = 256 * nThreads;
+    this.timeout = timeout;
+  }
+
+  /**
+   * The output line for a record that could not be processed, it was
+   * abandoned or its worker threw an exception. By default nothing is
+   * written.
+   *
+   * @param failed provides the line for a failed record, null to write
+   *               nothing
+   */
+  void setFailed(Worker<T> failed) {
+    this.failed = failed;
+  }
+
+  /**
+   * The record the calling thread is processing as a worker of a pipeline.
+   *
+   * @return the (1 based) record number, 0 if not a worker
+   */
+  static long currentRecord() {
+    Job<?> job = current.get();
+    return job != null ? job.idx + 1 : 0;
+  }
+
+  /**
+   * Claim the outcome of the record the calling thread is processing as a
+   * worker, e.g. to count it. A record is settled once, by its worker or by
+   * the watchdog abandoning it (and calling {@link #setFailed the failed
+   * worker}), outside a worker there is nothing to claim.
+   *
+   * @return the caller has the outcome, false if the record was abandoned or
+   *         already settled
+   */
+  static boolean settle() {
+    Job<?> job = current.get();
+    return job == null || job.state.compareAndSet(RUNNING, SETTLED);
+  }
+
+  /**
+   * Process all records from the source and write the results.
+   *
+   * @param source the record source
+   * @param worker the record processor
+   * @param wtr    where to write the output lines
+   * @throws IOException low level IO error reading or writing
+   */
+  void run(final Source<T> source,
+           final Worker<T> worker,
+           Writer wtr) throws IOException {
+
+    final Semaphore            inflight = new Semaphore(capacity);
+    final BlockingQueue<Job<T>> todo    = new ArrayBlockingQueue<>(capacity + nThreads);
+    final BlockingQueue<Job<T>> done    = new LinkedBlockingQueue<>();
+    final Job<T>               eof      = new Job<>(-1, null);
+    final Job<T>               fatal    = new Job<>(-2, null);
+    final Throwable[]          error    = new Throwable[1];
+    final Throwable[]          failure  = new Throwable[1];
+
+    List<Thread> threads = new ArrayList<>();
+    threads.add(new Thread(new Runnable() {
+      @Override
+      public void run() {
+        long idx = 0;
+        try {
+          while (true) {
+            inflight.acquire();
+            T record = source.next();
+            if (record == null)
+              break;
+            todo.put(new Job<>(idx++, record));
+          }
+        } catch (InterruptedException e) {
+          return;
+        } catch (IOException | RuntimeException e) {
+          synchronized (error) {
+            error[0] = e;
+          }
+        }
+        try {
+          for (int i = 0; i < nThreads; i++)
+            todo.put(eof);
+        } catch (InterruptedException ignore) {
+        }
+      }
+    }, "inchi-ma-reader"));
+
+    // a worker thread and the record it is on, the watchdog replaces the
+    // worker if it takes too long
+    final class Slot implements Runnable {
+      private Thread  thread;
+      private Job<T>  job;       // guarded by this
+      private long    started;   // guarded by this
+      private boolean abandoned; // guarded by this
+
+      @Override
+      public void run() {
+        try {
+          Job<T> job;
+          while ((job = todo.take()) != eof) {
+            synchronized (this) {
+              this.job = job;
+              this.started = System.nanoTime();
+            }
+            current.set(job);
+            String result;
+            try {
+              result = worker.process(job.record);
+            } catch (RuntimeException e) {
+              System.err.println("ERROR: Could not process record " +
+                                 (job.idx + 1) + ": " + e);
+              result = failedResult(job.record);
+            } finally {
+              current.remove();
+            }
+            synchronized (this) {
+              // the watchdog has already given up on the record
+              if (abandoned)
+                return;
+              this.job = null;
+            }
+            job.result = result;
+            done.put(job);
+          }
+          done.put(eof);
+        } catch (InterruptedException ignore) {
+        } catch (Throwable e) {
+          // e.g. OutOfMemoryError, the worker can not continue and neither
+          // can the run (unless the record was already abandoned)
+          synchronized (this) {
+            if (abandoned)
+              return;
+          }
+          synchronized (failure) {
+            if (failure[0] == null)
+              failure[0] = e;
+          }
+          done.offer(fatal);
+        }
+      }
+    }
+
+    final List<Slot> slots = new ArrayList<>();
+    for (int i = 0; i < nThreads; i++) {
+      Slot slot = new Slot();
+      slot.thread = new Thread(slot, "inchi-ma-worker-" + (i + 1));
+      slots.add(slot);
+      threads.add(slot.thread);
+    }
+
+    if (timeout > 0) {
+      threads.add(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          long limit    = timeout * 1000000L;
+          long period   = Math.max(1, Math.min(timeout / 4, 100));
+          int  nWorkers = nThreads;
+          try {
+            while (true) {
+              Thread.sleep(period);
+              long now = System.nanoTime();
+              synchronized (slots) {
+                for (int i = 0; i < slots.size(); i++) {
+                  Slot   slot = slots.get(i);
+                  Job<T> job;
+                  synchronized (slot) {
+                    if (slot.job == null || now - slot.started < limit)
+                      continue;
+                    // the worker already has the outcome, the result is
+                    // on its way
+                    if (!slot.job.state.compareAndSet(RUNNING, ABANDONED))
+                      continue;
+                    slot.abandoned = true;
+                    job = slot.job;
+                  }
+                  System.err.println("ERROR: Abandoned record " + (job.idx + 1) + " after " +
+                                     timeout + " ms: " + describe(job.record));
+                  slot.thread.interrupt();
+                  Slot replacement = new Slot();
+                  replacement.thread = new Thread(replacement, "inchi-ma-worker-" + (++nWorkers));
+                  replacement.thread.setDaemon(true);
+                  replacement.thread.start();
+                  slots.set(i, replacement);
+                  job.result = failedResult(job.record);
+                  done.put(job);
+                }
+              }
+            }
+          } catch (InterruptedException ignore) {
+          }
+        }
+      }, "inchi-ma-watchdog"));
+    }
+
+    for (Thread thread : threads) {
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    try {
+      Map<Long, Job<T>> pending   = new HashMap<>();
+      long              next      = 0;
+      int               remaining = nThreads;
+      while (remaining > 0) {
+        Job<T> job = done.take();
+        if (job == eof) {
+          remaining--;
+        } else if (job == fatal) {
+          break;
+        } else if (!ordered) {
+          write(wtr, job);
+          inflight.release();
+        } else {
+          pending.put(job.idx, job);
+          while ((job = pending.remove(next)) != null) {
+            write(wtr, job);
+            inflight.release();
+            next++;
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted whilst waiting for results");
+    } finally {
+      for (Thread thread : threads)
+        thread.interrupt();
+      synchronized (slots) {
+        for (Slot slot : slots)
+          slot.thread.interrupt();
+      }
+    }
+
+    synchronized (failure) {
+      if (failure[0] != null)
+        throw new IOException("Could not process record: " + failure[0], failure[0]);
+    }
+    synchronized (error) {
+      if (error[0] instanceof IOException)
+        throw (IOException) error[0];
+      else if (error[0] != null)
+        throw new IOException("Could not read record", error[0]);
+    }
+  }
+
+  private String failedResult(T record) {
+    Worker<T> failed = this.failed;
+    if (failed == null)
+      return null;
+    try {
+      return failed.process(record);
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  // the first line of a record (the SMILES and title, or molfile title), the
+  // first title of a run of conformers
+  private static String describe(Object record) {
+    if (record instanceof List && !((List<?>) record).isEmpty())
+      record = ((List<?>) record).get(0);
+    String str = record instanceof IAtomContainer ? ((IAtomContainer) record).getTitle()
+                                                  : String.valueOf(record);
+    if (str == null)
+      return "";
+    int    end = str.indexOf('\n');
+    if (end < 0)
+      end = str.length();
+    if (end > 0 && str.charAt(end - 1) == '\r')
+      end--;
+    return end > 80 ? str.substring(0, 77) + "..." : str.substring(0, end);
+  }
+
+  private static void write(Writer wtr, Job<?> job) throws IOException {
+    if (job.result != null) {
+      wtr.write(job.result);
+      wtr.write('\n');
+    }
+  }
+}
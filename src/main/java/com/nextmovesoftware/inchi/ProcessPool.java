@@ -0,0 +1,276 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Processes records in child JVMs so a crash in the native InChI library
+ * (or the JVM running out of memory) only loses the record it was on. Each
+ * worker thread of a {@link Pipeline} owns a child, a resident
+ * {@link Server} reading records on STDIN, and streams records to it over
+ * the pipe one at a time. The child replies with a status so a record with
+ * an empty result, no result or that failed is handled as it would be in
+ * process. If the child exits, or with a timeout takes too long and is
+ * killed, the record is reported and written as-is to the reject file (so it
+ * can be rerun or inspected) and a new child is started for the next
+ * record.
+ *
+ * <pre>
+ * try (ProcessPool&lt;String&gt; pool = new ProcessPool&lt;&gt;(args, false, 0, rejects, null)) {
+ *   new Pipeline&lt;String&gt;(nProcs, true).run(source, pool, wtr);
+ * }
+ * </pre>
+ *
+ * @param <T> the record type, the text of a record is its toString()
+ */
+final class ProcessPool<T> implements Pipeline.Worker<T>, Closeable {
+
+  // allowance on the first record of a child for the JVM to start and the
+  // native library to load
+  private static final long STARTUP_MS = 10000;
+
+  /**
+   * A child JVM and the pipes to and from it.
+   */
+  private static final class Child {
+    private final Process        proc;
+    private final Writer         wtr;
+    private final BufferedReader rdr;
+    private volatile boolean     killed;
+
+    private Child(Process proc) {
+      this.proc = proc;
+      this.wtr = new BufferedWriter(new OutputStreamWriter(proc.getOutputStream(),
+                                                           StandardCharsets.UTF_8));
+      this.rdr = new BufferedReader(new InputStreamReader(proc.getInputStream(),
+                                                          StandardCharsets.UTF_8));
+    }
+
+    private void kill() {
+      killed = true;
+      proc.destroy();
+    }
+
+    private int exitCode() {
+      try {
+        return proc.waitFor();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return -1;
+      }
+    }
+  }
+
+  private final List<String>       command;
+  private final boolean            sdf;
+  private final long               timeout;
+  private final Writer             rejects;
+  private final Pipeline.Worker<T> failed;
+  private final Timer              timer;
+  private final List<Child>        children = new ArrayList<>(); // guarded by this
+  private final ThreadLocal<Child> child    = new ThreadLocal<>();
+
+  /**
+   * Create a new pool, the children are started as they are needed.
+   *
+   * @param args    the command line arguments of a child, '-serve - -status'
+   *                is added
+   * @param sdf     records are molfiles ('$$$$' terminated) rather than lines
+   * @param timeout kill a child that takes longer than this many
+   *                milliseconds on a record, 0 for no limit
+   * @param rejects where to write records that could not be processed, null
+   *                to only report them
+   * @param failed  the output line of a record that was rejected or could
+   *                not be processed, null to write nothing
+   * @throws IOException the reject file could not be opened
+   */
+  ProcessPool(List<String> args, boolean sdf, long timeout, File rejects,
+              Pipeline.Worker<T> failed) throws IOException {
+    if (timeout < 0)
+      throw new IllegalArgumentException("Timeout must not be negative");
+    this.command = new ArrayList<>();
+    this.command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+    this.command.add("-cp");
+    this.command.add(System.getProperty("java.class.path"));
+    this.command.add(Main.class.getName());
+    this.command.addAll(args);
+    this.command.add("-serve");
+    this.command.add("-");
+    this.command.add("-status");
+    this.sdf = sdf;
+    this.timeout = timeout;
+    this.rejects = rejects != null ? new BufferedWriter(new OutputStreamWriter(new FileOutputStream(rejects),
+                                                                               StandardCharsets.UTF_8))
+                                   : null;
+    this.timer = timeout > 0 ? new Timer("inchi-ma-process-timeout", true) : null;
+    this.failed = failed;
+  }
+
+  @Override
+  public String process(T record) {
+    String text = frame(record.toString());
+    Child  proc = child.get();
+    long   time = timeout;
+    if (proc == null) {
+      proc = start();
+      child.set(proc);
+      time += STARTUP_MS;
+    }
+
+    TimerTask   kill = null;
+    final Child tmp  = proc;
+    if (timer != null) {
+      kill = new TimerTask() {
+        @Override
+        public void run() {
+          tmp.kill();
+        }
+      };
+      timer.schedule(kill, time);
+    }
+    String line;
+    try {
+      proc.wtr.write(text);
+      proc.wtr.flush();
+      line = proc.rdr.readLine();
+    } catch (IOException e) {
+      line = null;
+    }
+    if (kill != null)
+      kill.cancel();
+    boolean timedOut = proc.killed;
+    if (line != null && !timedOut)
+      return result(line, record);
+
+    // the child is gone (or was killed just after it replied), it will be
+    // replaced for the next record
+    retire(proc);
+    if (line != null)
+      return result(line, record);
+    int code = proc.exitCode();
+    if (timedOut)
+      System.err.println("ERROR: Rejected record after " + time + " ms (worker process killed): " +
+                         describe(text));
+    else
+      System.err.println("ERROR: Rejected record, worker process exited (" + code + "): " +
+                         describe(text));
+    reject(text);
+    return failed != null ? failed.process(record) : null;
+  }
+
+  /**
+   * Stop the children (they exit at the end of their input) and close the
+   * reject file.
+   *
+   * @throws IOException the reject file could not be written
+   */
+  @Override
+  public void close() throws IOException {
+    if (timer != null)
+      timer.cancel();
+    synchronized (this) {
+      for (Child proc : children) {
+        try {
+          proc.wtr.close();
+        } catch (IOException ignore) {
+          // already exited
+        }
+        proc.exitCode();
+      }
+      children.clear();
+    }
+    if (rejects != null)
+      rejects.close();
+  }
+
+  // the output line for the reply of a child, its first character is the
+  // status
+  private String result(String line, T record) {
+    if (!line.isEmpty()) {
+      switch (line.charAt(0)) {
+        case Server.RESULT:
+          return line.substring(1);
+        case Server.NO_RESULT:
+          return null;
+        case Server.FAILED:
+          return failed != null ? failed.process(record) : null;
+      }
+    }
+    System.err.println("ERROR: Unexpected reply from worker process: " + line);
+    return failed != null ? failed.process(record) : null;
+  }
+
+  private Child start() {
+    ProcessBuilder pb = new ProcessBuilder(command);
+    pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+    try {
+      Child proc = new Child(pb.start());
+      synchronized (this) {
+        children.add(proc);
+      }
+      return proc;
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not start worker process: " + e.getMessage(), e);
+    }
+  }
+
+  private void retire(Child proc) {
+    child.remove();
+    synchronized (this) {
+      children.remove(proc);
+    }
+    proc.kill();
+  }
+
+  // a SMILES line or a '$$$$' terminated molfile, as the Server reads them
+  private String frame(String text) {
+    if (!sdf)
+      return text + '\n';
+    int end = text.length();
+    while (end > 0 && Character.isWhitespace(text.charAt(end - 1)))
+      end--;
+    int beg = text.lastIndexOf('\n', end - 1) + 1;
+    if (text.startsWith("$$$$", beg))
+      return end == text.length() ? text + '\n' : text;
+    return text.substring(0, end) + "\n$$$$\n";
+  }
+
+  private synchronized void reject(String text) {
+    if (rejects == null)
+      return;
+    try {
+      rejects.write(text);
+      rejects.flush();
+    } catch (IOException e) {
+      System.err.println("ERROR: Could not write to the reject file: " + e.getMessage());
+    }
+  }
+
+  // the first line of a record (the SMILES and title, or molfile title)
+  private static String describe(String text) {
+    int end = text.indexOf('\n');
+    if (end < 0)
+      end = text.length();
+    if (end > 0 && text.charAt(end - 1) == '\r')
+      end--;
+    return end > 80 ? text.substring(0, 77) + "..." : text.substring(0, end);
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A resident server so the JVM start up, class loading and native InChI
+ * library loading are paid once rather than per invocation. Records are
+ * read from a stream (STDIN or a TCP connection on the loopback interface),
+ * a SMILES record is a line and a molfile record is terminated by '$$$$'.
+ * Exactly one line is written back for each record, in order, and flushed
+ * immediately so a client can send a record and wait for its result. If a
+ * record could not be processed the line is empty. Each connection is served
+ * on its own thread, the records of different clients are processed
+ * concurrently.
+ * <p>
+ * With status each line starts with a character that says what the rest of
+ * the line is, so an empty result can be told apart from none at all:
+ * {@link #RESULT} the result (which may be empty), {@link #NO_RESULT} the
+ * record has no output line, or {@link #FAILED} the record could not be
+ * processed.
+ */
+final class Server {
+
+  static final char RESULT    = '+';
+  static final char NO_RESULT = '-';
+  static final char FAILED    = '!';
+
+  private final Pipeline.Worker<String> worker;
+  private final boolean                 sdf;
+  private final boolean                 status;
+
+  /**
+   * Create a new server.
+   *
+   * @param worker processes the text of a record into an output line
+   * @param sdf    records are molfiles ('$$$$' terminated) rather than lines
+   * @param status start each line written back with its status
+   */
+  Server(Pipeline.Worker<String> worker, boolean sdf, boolean status) {
+    this.worker = worker;
+    this.sdf = sdf;
+    this.status = status;
+  }
+
+  /**
+   * Serve records from a reader until the end of the stream.
+   *
+   * @param rdr the requests
+   * @param wtr where to write the results
+   * @throws IOException low level IO error
+   */
+  void serve(BufferedReader rdr, Writer wtr) throws IOException {
+    String record;
+    while ((record = readRecord(rdr)) != null) {
+      String result;
+      char   code;
+      try {
+        result = worker.process(record);
+        code = result != null ? RESULT : NO_RESULT;
+      } catch (RuntimeException e) {
+        System.err.println("ERROR: Could not process record: " + e);
+        result = null;
+        code = FAILED;
+      }
+      if (status)
+        wtr.write(code);
+      if (result != null)
+        wtr.write(result);
+      wtr.write('\n');
+      wtr.flush();
+    }
+  }
+
+  /**
+   * Listen for connections on the loopback interface, this does not return
+   * unless there is an error.
+   *
+   * @param port the port, 0 to pick a free port
+   * @throws IOException low level IO error
+   */
+  void listen(int port) throws IOException {
+    try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+      System.err.println("Listening on " + server.getInetAddress().getHostAddress() +
+                         ":" + server.getLocalPort());
+      long nClients = 0;
+      while (true) {
+        final Socket client = server.accept();
+        Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try (Socket socket = client;
+                 BufferedReader rdr = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                                                                               StandardCharsets.UTF_8));
+                 Writer wtr = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),
+                                                                        StandardCharsets.UTF_8))) {
+              serve(rdr, wtr);
+            } catch (IOException e) {
+              System.err.println("Low level IO Error: " + e.getMessage());
+            }
+          }
+        }, "inchi-ma-client-" + (++nClients));
+        thread.setDaemon(true);
+        thread.start();
+      }
+    }
+  }
+
+  private String readRecord(BufferedReader rdr) throws IOException {
+    return sdf ? readSdfRecord(rdr) : rdr.readLine();
+  }
+
+  /**
+   * Read the text of an SDfile record, the lines up to and including one
+   * that starts with '$$$$'.
+   *
+   * @param rdr the reader
+   * @return the record, null if there are no more
+   * @throws IOException low level IO error
+   */
+  static String readSdfRecord(BufferedReader rdr) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    String        line;
+    while ((line = rdr.readLine()) != null) {
+      sb.append(line).append('\n');
+      if (line.startsWith("$$$$"))
+        return sb.toString();
+    }
+    // unterminated final record
+    return sb.length() != 0 && sb.toString().trim().length() != 0 ? sb.toString() : null;
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * One of N shares of the records of an input so a run can be spread over
+ * several processes or machines. A regular file is split into N byte ranges
+ * on line (or SDfile record) boundaries, only the share's range is mapped
+ * and read. Other input (STDIN) is read in full and the share is every Nth
+ * record. The shares are the same for every process given the same input.
+ * <p>
+ * Each output line is prefixed with a key and a tab, the byte offset of the
+ * record for a range or its index otherwise, the output of all the shares
+ * can then be {@link #merge}d back into input order.
+ *
+ * <pre>
+ * java -jar inchi-ma.jar -shard 1/2 input.smi out.1
+ * java -jar inchi-ma.jar -shard 2/2 input.smi out.2
+ * java -jar inchi-ma.jar -merge out.1 out.2 &gt; output.txt
+ * </pre>
+ */
+final class Shard {
+
+  /**
+   * A record of the share and its key.
+   *
+   * @param <T> the record type
+   */
+  static final class Record<T> {
+    private final long key;
+    private final T    record;
+
+    private Record(long key, T record) {
+      this.key = key;
+      this.record = record;
+    }
+
+    @Override
+    public String toString() {
+      return record.toString();
+    }
+  }
+
+  private final int index; // 0 based
+  private final int count;
+
+  private Shard(int index, int count) {
+    this.index = index;
+    this.count = count;
+  }
+
+  /**
+   * Parse a share of the form 'i/N', 1 &lt;= i &lt;= N.
+   *
+   * @param spec the share
+   * @return the share, null if it could not be parsed
+   */
+  static Shard parse(String spec) {
+    int idx = spec.indexOf('/');
+    if (idx > 0) {
+      try {
+        int i = Integer.parseInt(spec.substring(0, idx));
+        int n = Integer.parseInt(spec.substring(idx + 1));
+        if (n >= 1 && i >= 1 && i <= n)
+          return new Shard(i - 1, n);
+      } catch (NumberFormatException ignore) {
+      }
+    }
+    System.err.println("Argument error -shard <i/N>, expected 1 <= i <= N: " + spec);
+    return null;
+  }
+
+  /**
+   * A reader of the lines in this share of a file.
+   *
+   * @param channel the file
+   * @return the reader
+   * @throws IOException low level IO error
+   */
+  MappedLineReader lines(FileChannel channel) throws IOException {
+    long[] bounds = MappedLineReader.split(channel, count);
+    return new MappedLineReader(channel, bounds[index], bounds[index + 1]);
+  }
+
+  /**
+   * A reader of the SDfile records in this share of a file.
+   *
+   * @param channel the file
+   * @return the reader
+   * @throws IOException low level IO error
+   */
+  MappedLineReader records(FileChannel channel) throws IOException {
+    long[] bounds = MappedLineReader.splitRecords(channel, count);
+    return new MappedLineReader(channel, bounds[index], bounds[index + 1]);
+  }
+
+  /**
+   * The records of this share from a source with their keys. A mapped
+   * source is expected to already be the share's range ({@link #lines} or
+   * {@link #records}), the records are keyed by their offset. Any other
+   * source has every Nth record selected and keyed by its index.
+   *
+   * @param source the source
+   * @param <T>    the record type
+   * @return the keyed records of this share
+   */
+  <T> Pipeline.Source<Record<T>> select(final Pipeline.Source<T> source) {
+    return new Pipeline.Source<Record<T>>() {
+      private long idx = 0;
+
+      @Override
+      public Record<T> next() throws IOException {
+        T record;
+        while ((record = source.next()) != null) {
+          long i = idx++;
+          if (record instanceof MappedLineReader.Line)
+            return new Record<>(((MappedLineReader.Line) record).offset(), record);
+          if (i % count == index)
+            return new Record<>(i, record);
+        }
+        return null;
+      }
+    };
+  }
+
+  /**
+   * Prefix each output line of a worker with the key of its record.
+   *
+   * @param worker the worker
+   * @param <T>    the record type
+   * @return the keyed worker
+   */
+  <T> Pipeline.Worker<Record<T>> worker(final Pipeline.Worker<T> worker) {
+    return new Pipeline.Worker<Record<T>>() {
+      @Override
+      public String process(Record<T> record) {
+        String result = worker.process(record.record);
+        if (result == null)
+          return null;
+        String prefix = Long.toString(record.key) + '\t';
+        return prefix + result.replace("\n", "\n" + prefix);
+      }
+    };
+  }
+
+  /**
+   * A line of a share's output and where it came from.
+   */
+  private static final class Head {
+    private final BufferedReader rdr;
+    private final int            shard;
+    private       long           key;
+    private       String         line;
+
+    private Head(BufferedReader rdr, int shard) {
+      this.rdr = rdr;
+      this.shard = shard;
+    }
+
+    // read the next line, false if there are no more
+    private boolean advance() throws IOException {
+      String line = rdr.readLine();
+      if (line == null)
+        return false;
+      int tab = line.indexOf('\t');
+      try {
+        if (tab < 0)
+          throw new NumberFormatException();
+        this.key = Long.parseLong(line.substring(0, tab));
+      } catch (NumberFormatException e) {
+        throw new IOException("Not the output of -shard: " + line);
+      }
+      this.line = line.substring(tab + 1);
+      return true;
+    }
+  }
+
+  /**
+   * Merge the output of the shares of an input (in any order) into input
+   * order, the keys are removed.
+   *
+   * @param files the output of each share
+   * @param wtr   where to write the merged output
+   * @throws IOException low level IO error or a file is not shard output
+   */
+  static void merge(List<File> files, Writer wtr) throws IOException {
+    PriorityQueue<Head> queue = new PriorityQueue<>(Math.max(1, files.size()), new Comparator<Head>() {
+      @Override
+      public int compare(Head a, Head b) {
+        int cmp = Long.compare(a.key, b.key);
+        return cmp != 0 ? cmp : Integer.compare(a.shard, b.shard);
+      }
+    });
+    List<BufferedReader> rdrs = new ArrayList<>();
+    try {
+      for (File file : files) {
+        BufferedReader rdr = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                                                                      StandardCharsets.UTF_8));
+        rdrs.add(rdr);
+        Head head = new Head(rdr, rdrs.size());
+        if (head.advance())
+          queue.add(head);
+      }
+      Head head;
+      while ((head = queue.poll()) != null) {
+        wtr.write(head.line);
+        wtr.write('\n');
+        if (head.advance())
+          queue.add(head);
+      }
+    } finally {
+      for (BufferedReader rdr : rdrs)
+        rdr.close();
+    }
+  }
+}
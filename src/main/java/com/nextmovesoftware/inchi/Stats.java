@@ -0,0 +1,164 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-stage timings and record counts. Latencies go into log-linear
+ * histograms (8 sub-buckets per power of two, so percentiles are within
+ * ~6%) that only need a few atomic increments per sample so the overhead is
+ * low and the stats can be shared between worker threads.
+ */
+final class Stats {
+
+  enum Stage {
+    PARSE("parse"),
+    PERCEIVE("perceive"),
+    INCHI("inchi"),
+    AUXINFO("auxinfo"),
+    SYMMETRY("symmetry"),
+    CONFIG("config"),
+    RECORD("record");
+
+    private final String name;
+
+    Stage(String name) {
+      this.name = name;
+    }
+  }
+
+  static final class Histogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB      = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB);
+    private final AtomicLong      count  = new AtomicLong();
+    private final AtomicLong      total  = new AtomicLong();
+    private final AtomicLong      max    = new AtomicLong();
+
+    static int bucket(long v) {
+      if (v < SUB)
+        return (int) Math.max(0, v);
+      int exp = 63 - Long.numberOfLeadingZeros(v);
+      return (exp - SUB_BITS + 1) * SUB + (int) ((v >>> (exp - SUB_BITS)) & (SUB - 1));
+    }
+
+    // middle of the range of values that fall in a bucket
+    static long value(int bucket) {
+      if (bucket < SUB)
+        return bucket;
+      int  shift = bucket / SUB - 1;
+      long lower = (long) (SUB + bucket % SUB) << shift;
+      return lower + (1L << shift) / 2;
+    }
+
+    void add(long v) {
+      counts.incrementAndGet(bucket(v));
+      count.incrementAndGet();
+      total.addAndGet(v);
+      long prev;
+      while (v > (prev = max.get()))
+        if (max.compareAndSet(prev, v))
+          break;
+    }
+
+    long percentile(double q) {
+      long n = count.get();
+      if (n == 0)
+        return 0;
+      long rank = Math.max(1, (long) Math.ceil(q * n));
+      long seen = 0;
+      for (int i = 0; i < counts.length(); i++) {
+        seen += counts.get(i);
+        if (seen >= rank)
+          return Math.min(value(i), max.get());
+      }
+      return max.get();
+    }
+  }
+
+  private final Histogram[] histograms = new Histogram[Stage.values().length];
+  private final AtomicLong  records    = new AtomicLong();
+  private final AtomicLong  skipped    = new AtomicLong();
+  private final AtomicLong  failed     = new AtomicLong();
+  private final long        start      = System.nanoTime();
+
+  Stats() {
+    for (int i = 0; i < histograms.length; i++)
+      histograms[i] = new Histogram();
+  }
+
+  /**
+   * Record the time taken by a stage that started at the given time.
+   *
+   * @param stage the stage
+   * @param t0    start of the stage (System.nanoTime())
+   * @return the current time, the start of the next stage
+   */
+  long record(Stage stage, long t0) {
+    long t1 = System.nanoTime();
+    histograms[stage.ordinal()].add(t1 - t0);
+    return t1;
+  }
+
+  void processed() {
+    records.incrementAndGet();
+  }
+
+  void skipped() {
+    skipped.incrementAndGet();
+  }
+
+  void failed() {
+    failed.incrementAndGet();
+  }
+
+  /**
+   * Print a one line summary of the progress so far.
+   *
+   * @param out where to print
+   */
+  void printProgress(PrintStream out) {
+    double secs = (System.nanoTime() - start) / 1e9;
+    long   n    = records.get();
+    out.printf(Locale.ROOT, "%d records in %.0f s (%.1f records/s), %d skipped, %d failed%n",
+               n, secs, secs > 0 ? n / secs : 0.0, skipped.get(), failed.get());
+  }
+
+  /**
+   * Print the throughput and a table of latencies for each stage that was
+   * run.
+   *
+   * @param out where to print
+   */
+  void printSummary(PrintStream out) {
+    double secs = (System.nanoTime() - start) / 1e9;
+    long   n    = records.get();
+    out.printf(Locale.ROOT, "Processed %d records in %.2f s (%.1f records/s), %d skipped, %d failed%n",
+               n, secs, secs > 0 ? n / secs : 0.0, skipped.get(), failed.get());
+    out.printf(Locale.ROOT, "%-10s %10s %12s %10s %10s %10s %10s%n",
+               "stage", "count", "total(ms)", "mean(us)", "p50(us)", "p99(us)", "max(us)");
+    for (Stage stage : Stage.values()) {
+      Histogram hist  = histograms[stage.ordinal()];
+      long      count = hist.count.get();
+      if (count == 0)
+        continue;
+      out.printf(Locale.ROOT, "%-10s %10d %12.1f %10.1f %10.1f %10.1f %10.1f%n",
+                 stage.name, count,
+                 hist.total.get() / 1e6,
+                 hist.total.get() / 1e3 / count,
+                 hist.percentile(0.50) / 1e3,
+                 hist.percentile(0.99) / 1e3,
+                 hist.max.get() / 1e3);
+    }
+  }
+}
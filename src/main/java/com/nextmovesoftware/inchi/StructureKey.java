@@ -0,0 +1,155 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import org.openscience.cdk.geometry.GeometryUtil;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.interfaces.IChemObject;
+import org.openscience.cdk.interfaces.ISingleElectron;
+import org.openscience.cdk.interfaces.IStereoElement;
+import org.openscience.cdk.stereo.StereoElementFactory;
+
+import javax.vecmath.Point2d;
+import javax.vecmath.Point3d;
+
+/**
+ * Builds a string key of everything in a molecule that the InChI (and
+ * AuxInfo) depend on: the atoms, charges, isotopes, hydrogen counts,
+ * radicals, bonds, coordinates and stereo. The key is for the input atom
+ * order, it is not canonical, but it is exact so two molecules with the same
+ * key will have the same InChI and AuxInfo.
+ */
+final class StructureKey {
+
+  private StructureKey() {
+  }
+
+  /**
+   * Key for the molecule without any Square Planar, Trigonal Bipyramidal or
+   * Octahedral stereo, these are not seen by InChI so metal stereoisomers of
+   * the same structure share a key.
+   *
+   * @param mol the molecule
+   * @return the key
+   */
+  static String withoutMetalGeometry(IAtomContainer mol) {
+    StringBuilder sb = new StringBuilder(16 * mol.getAtomCount());
+    appendConnectionTable(sb, mol);
+    sb.append('|');
+    appendCoordinates(sb, mol);
+    sb.append('|');
+    appendStereo(sb, mol.stereoElements());
+    return sb.toString();
+  }
+
+  /**
+   * Key for the connection table of the molecule, the atoms (in order) and
+   * bonds without coordinates or stereo.
+   *
+   * @param mol the molecule
+   * @return the key
+   */
+  static String connectionTable(IAtomContainer mol) {
+    StringBuilder sb = new StringBuilder(16 * mol.getAtomCount());
+    appendConnectionTable(sb, mol);
+    return sb.toString();
+  }
+
+  /**
+   * Key for the tetrahedral and double bond stereo perceived from the 3D
+   * coordinates (as InChI does), with the same connection table the
+   * conformers of a stereoisomer share a key but its other stereoisomers do
+   * not. Metal geometry is not included.
+   *
+   * @param mol the molecule
+   * @return the key, empty if the molecule does not have 3D coordinates
+   */
+  static String stereoFrom3d(IAtomContainer mol) {
+    StringBuilder sb = new StringBuilder();
+    if (GeometryUtil.has3DCoordinates(mol))
+      appendStereo(sb, StereoElementFactory.using3DCoordinates(mol).createAll());
+    return sb.toString();
+  }
+
+  private static void appendConnectionTable(StringBuilder sb, IAtomContainer mol) {
+    for (IAtom atom : mol.atoms()) {
+      Integer elem = atom.getAtomicNumber();
+      if (elem == null || elem == 0)
+        sb.append(atom.getSymbol());
+      else
+        sb.append(elem);
+      sb.append(',').append(atom.getFormalCharge())
+        .append(',').append(atom.getMassNumber())
+        .append(',').append(atom.getImplicitHydrogenCount())
+        .append(';');
+    }
+    sb.append('|');
+    for (IBond bond : mol.bonds()) {
+      sb.append(bond.getBegin().getIndex())
+        .append(',').append(bond.getOrder() == null ? "?" : bond.getOrder().numeric())
+        .append(',').append(bond.getEnd().getIndex())
+        .append(';');
+    }
+    sb.append('|');
+    for (ISingleElectron se : mol.singleElectrons())
+      sb.append(se.getAtom().getIndex()).append(';');
+  }
+
+  // as InChIGenerator, coordinates are only used if all atoms have them
+  private static void appendCoordinates(StringBuilder sb, IAtomContainer mol) {
+    boolean all3d = true;
+    boolean all2d = true;
+    for (IAtom atom : mol.atoms()) {
+      if (atom.getPoint3d() == null)
+        all3d = false;
+      if (atom.getPoint2d() == null)
+        all2d = false;
+    }
+    if (all3d) {
+      for (IAtom atom : mol.atoms()) {
+        Point3d p = atom.getPoint3d();
+        sb.append(p.x).append(',').append(p.y).append(',').append(p.z).append(';');
+      }
+    } else if (all2d) {
+      for (IAtom atom : mol.atoms()) {
+        Point2d p = atom.getPoint2d();
+        sb.append(p.x).append(',').append(p.y).append(';');
+      }
+    }
+  }
+
+  // the stereo other than Square Planar, Trigonal Bipyramidal and Octahedral
+  private static void appendStereo(StringBuilder sb, Iterable<IStereoElement> stereo) {
+    for (IStereoElement se : stereo) {
+      switch (se.getConfigClass()) {
+        case IStereoElement.SP:
+        case IStereoElement.TBPY:
+        case IStereoElement.OC:
+          continue;
+      }
+      sb.append(se.getConfigClass()).append(':')
+        .append(se.getConfig()).append(':');
+      appendIndex(sb, se.getFocus());
+      for (Object carrier : se.getCarriers()) {
+        sb.append(',');
+        appendIndex(sb, (IChemObject) carrier);
+      }
+      sb.append(';');
+    }
+  }
+
+  private static void appendIndex(StringBuilder sb, IChemObject obj) {
+    if (obj instanceof IAtom)
+      sb.append('a').append(((IAtom) obj).getIndex());
+    else if (obj instanceof IBond)
+      sb.append('b').append(((IBond) obj).getIndex());
+    else
+      sb.append('?');
+  }
+}
@@ -4,17 +4,32 @@
  * =====================================
  */
 
+import com.nextmovesoftware.inchi.BatchPerceiveFrom3d;
 import com.nextmovesoftware.inchi.InChIMetalArch;
+import com.nextmovesoftware.inchi.PerceiveFrom3d;
 import net.sf.jniinchi.INCHI_OPTION;
 import org.hamcrest.CoreMatchers;
 import org.junit.Assert;
 import org.junit.Test;
+import org.openscience.cdk.inchi.InChIGenerator;
+import org.openscience.cdk.inchi.InChIGeneratorFactory;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+import org.openscience.cdk.smiles.SmilesParser;
+
+import javax.vecmath.Point3d;
 
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class InChIMetalArchTest {
 
@@ -55,6 +70,60 @@ public class InChIMetalArchTest {
     Assert.assertThat(inchis.size(), CoreMatchers.is(2));
   }
 
+  @Test
+  public void facMerCoNO2ClAuxInfoSymmetry() {
+    InChIMetalArch engine = new InChIMetalArch(Collections.singletonList(INCHI_OPTION.RecMet));
+    engine.setAuxInfoSymmetry(true);
+    InChIMetalArch canon = new InChIMetalArch(Collections.singletonList(INCHI_OPTION.RecMet));
+    Set<String> inchis = new HashSet<>();
+    for (int i = 1; i <= 30; i++) {
+      String smi = "Cl[Co@OH" + i + "](Cl)(Cl)(N(=O)(=O))(N(=O)=O)N(=O)=O";
+      String inchi = engine.generate(smi);
+      Assert.assertThat(inchi, CoreMatchers.is(canon.generate(smi)));
+      inchis.add(inchi);
+    }
+    Assert.assertThat(inchis.size(), CoreMatchers.is(2));
+  }
+
+  @Test
+  public void facMerCoNO2ClInChICache() {
+    InChIMetalArch engine = new InChIMetalArch();
+    engine.setInChICacheSize(10);
+    Set<String> inchis = new HashSet<>();
+    for (int i = 1; i <= 30; i++) {
+      String smi = "Cl[Co@OH" + i + "](Cl)(Cl)(N(=O)(=O))(N(=O)=O)N(=O)=O";
+      String inchi = engine.generate(smi);
+      Assert.assertThat(inchi, CoreMatchers.is(InChIMetalArch.toInChI(smi, EMPTY_OPTS)));
+      inchis.add(inchi);
+    }
+    Assert.assertThat(inchis.size(), CoreMatchers.is(2));
+  }
+
+  @Test
+  public void facMerCoNO2ClPrecomputed() throws Exception {
+    InChIMetalArch engine = new InChIMetalArch();
+    SmilesParser   smipar = new SmilesParser(SilentChemObjectBuilder.getInstance());
+    for (int i = 1; i <= 30; i++) {
+      String         smi      = "Cl[Co@OH" + i + "](Cl)(Cl)(N(=O)(=O))(N(=O)=O)N(=O)=O";
+      IAtomContainer mol      = smipar.parseSmiles(smi);
+      InChIGenerator inchigen = InChIGeneratorFactory.getInstance().getInChIGenerator(mol, EMPTY_OPTS);
+      Assert.assertThat(engine.generate(mol, inchigen.getInchi(), inchigen.getAuxInfo()),
+                        CoreMatchers.is(engine.generate(smi)));
+    }
+  }
+
+  @Test
+  public void generateToAppendable() throws Exception {
+    InChIMetalArch engine = new InChIMetalArch();
+    StringBuilder  sb     = new StringBuilder();
+    for (int i = 1; i <= 30; i++) {
+      String smi = "Cl[Co@OH" + i + "](Cl)(Cl)(N(=O)(=O))(N(=O)=O)N(=O)=O";
+      sb.setLength(0);
+      Assert.assertTrue(engine.generate(engine.parseSmiles(smi), sb));
+      Assert.assertThat(sb.toString(), CoreMatchers.is(engine.generate(smi)));
+    }
+  }
+
   // when we have 2+4 ligands in TBPY we have 3 possible configurations
   @Test
   public void tbpy2and4() {
@@ -66,4 +135,130 @@ public class InChIMetalArchTest {
     }
     Assert.assertThat(inchis.size(), CoreMatchers.is(3));
   }
-}
\ No newline at end of file
+
+  @Test
+  public void enumerateStereoisomers() throws Exception {
+    InChIMetalArch engine = new InChIMetalArch();
+    // the same isomers as the brute force over every order
+    String[] templates = {"Cl[Pt@SP%d](Cl)([NH3])[NH3]",
+                          "N[Co@TB%d](Cl)(Cl)(Cl)N",
+                          "Cl[Co@OH%d](Cl)(Cl)(N(=O)(=O))(N(=O)=O)N(=O)=O"};
+    int[]    nOrders   = {3, 20, 30};
+    int[]    expected  = {2, 3, 2};
+    for (int t = 0; t < templates.length; t++) {
+      Set<String> bruteForce = new HashSet<>();
+      for (int i = 1; i <= nOrders[t]; i++)
+        bruteForce.add(engine.generate(String.format(templates[t], i)));
+      List<String>     isomers = new ArrayList<>();
+      Iterator<String> iter    = engine.enumerate(engine.parseSmiles(String.format(templates[t], 1)));
+      while (iter.hasNext())
+        isomers.add(iter.next());
+      Assert.assertThat(isomers.size(), CoreMatchers.is(expected[t]));
+      Assert.assertThat(new HashSet<>(isomers), CoreMatchers.is(bruteForce));
+    }
+  }
+
+  @Test
+  public void noMetalGeometry() {
+    Assert.assertFalse(InChIMetalArch.hasMetalGeometry("CC(O)CC"));
+    Assert.assertFalse(InChIMetalArch.hasMetalGeometry("CCO @OH1"));
+    Assert.assertTrue(InChIMetalArch.hasMetalGeometry("Cl[Pt@SP1](Cl)([NH3])[NH3]"));
+    // a bare '@' on a 6 (or 5) coordinate atom is OH1 (or TB1)
+    Assert.assertTrue(InChIMetalArch.hasMetalGeometry("Cl[Co@](Cl)(Cl)(N(=O)(=O))(Cl)N(=O)=O"));
+    Assert.assertTrue(InChIMetalArch.hasMetalGeometry("N[Co@](Cl)(Cl)(Cl)N"));
+    Assert.assertThat(InChIMetalArch.toInChI("Cl[Co@](Cl)(Cl)(N(=O)(=O))(Cl)N(=O)=O", EMPTY_OPTS),
+                      CoreMatchers.endsWith("/ma5o1"));
+    Assert.assertThat(InChIMetalArch.toInChI("N[Co@](Cl)(Cl)(Cl)N", EMPTY_OPTS),
+                      CoreMatchers.endsWith("/ma4tb17"));
+    Assert.assertThat(InChIMetalArch.toInChI("C[C@@H](O)CC", EMPTY_OPTS),
+                      CoreMatchers.is("InChI=1S/C4H10O/c1-3-4(2)5/h4-5H,3H2,1-2H3/t4-/m1/s1/ma"));
+  }
+
+  @Test
+  public void sharedEngineFromManyThreads() throws Exception {
+    final InChIMetalArch engine = new InChIMetalArch();
+    List<String>         smis   = new ArrayList<>();
+    for (int i = 1; i <= 30; i++)
+      smis.add("Cl[Co@OH" + i + "](Cl)(Cl)(N(=O)(=O))(N(=O)=O)N(=O)=O");
+    ExecutorService      exec    = Executors.newFixedThreadPool(4);
+    List<Future<String>> results = new ArrayList<>();
+    for (final String smi : smis) {
+      results.add(exec.submit(new Callable<String>() {
+        @Override
+        public String call() {
+          return engine.generate(smi);
+        }
+      }));
+    }
+    for (int i = 0; i < smis.size(); i++)
+      Assert.assertThat(results.get(i).get(),
+                        CoreMatchers.is(InChIMetalArch.toInChI(smis.get(i), EMPTY_OPTS)));
+    exec.shutdown();
+  }
+
+  // a trans- and cis- conformer of CoCl2F4, the ligands are on the axes,
+  // packed as x[atom * 2 + conformer]
+  private static double[][] coCl2F4Conformers() {
+    double[][] axes   = {{2, 0, 0}, {-2, 0, 0}, {0, 2, 0}, {0, -2, 0}, {0, 0, 2}, {0, 0, -2}};
+    int[][]    ligand = {{0, 1, 2, 3, 4, 5}, {0, 2, 1, 3, 4, 5}}; // atom -> axis
+    int[]      atoms  = {0, 2, 3, 4, 5, 6};
+    double[][] xyz    = new double[3][7 * 2];
+    for (int c = 0; c < 2; c++)
+      for (int i = 0; i < atoms.length; i++)
+        for (int d = 0; d < 3; d++)
+          xyz[d][atoms[i] * 2 + c] = axes[ligand[c][i]][d];
+    return xyz;
+  }
+
+  private static IAtomContainer coCl2F4Conformer(IAtomContainer mol, double[][] xyz, int c)
+      throws CloneNotSupportedException {
+    IAtomContainer conf = mol.clone();
+    for (int i = 0; i < conf.getAtomCount(); i++)
+      conf.getAtom(i).setPoint3d(new Point3d(xyz[0][i * 2 + c], xyz[1][i * 2 + c], xyz[2][i * 2 + c]));
+    return conf;
+  }
+
+  @Test
+  public void batchPerceiveConformers() throws Exception {
+    SmilesParser   smipar = new SmilesParser(SilentChemObjectBuilder.getInstance());
+    IAtomContainer mol    = smipar.parseSmiles("Cl[Co](Cl)(F)(F)(F)F");
+    double[][]     xyz    = coCl2F4Conformers();
+
+    BatchPerceiveFrom3d batch = new BatchPerceiveFrom3d(mol);
+    Assert.assertThat(batch.centreCount(), CoreMatchers.is(1));
+    int[] codes = new int[2];
+    batch.perceive(xyz[0], xyz[1], xyz[2], 2, codes);
+
+    InChIMetalArch engine = new InChIMetalArch();
+    Set<String>    inchis = new HashSet<>();
+    for (int c = 0; c < 2; c++) {
+      Assert.assertThat(BatchPerceiveFrom3d.geometry(codes[c]), CoreMatchers.is(BatchPerceiveFrom3d.OCTAHEDRAL));
+      IAtomContainer conf     = coCl2F4Conformer(mol, xyz, c);
+      IAtomContainer expected = conf.clone();
+      PerceiveFrom3d.perceive(expected);
+      batch.apply(conf, codes, 2, c);
+      String inchi = engine.generate(conf);
+      Assert.assertThat(inchi, CoreMatchers.is(engine.generate(expected)));
+      inchis.add(inchi);
+    }
+    Assert.assertThat(inchis.size(), CoreMatchers.is(2));
+  }
+
+  @Test
+  public void generateConformers() throws Exception {
+    SmilesParser         smipar = new SmilesParser(SilentChemObjectBuilder.getInstance());
+    IAtomContainer       mol    = smipar.parseSmiles("Cl[Co](Cl)(F)(F)(F)F");
+    double[][]           xyz    = coCl2F4Conformers();
+    List<IAtomContainer> confs  = new ArrayList<>();
+    for (int c = 0; c < 2; c++) {
+      IAtomContainer conf = coCl2F4Conformer(mol, xyz, c);
+      PerceiveFrom3d.perceive(conf);
+      confs.add(conf);
+    }
+    InChIMetalArch engine = new InChIMetalArch();
+    List<String>   inchis = engine.generateConformers(confs);
+    Assert.assertThat(inchis.get(0), CoreMatchers.is(engine.generate(confs.get(0))));
+    Assert.assertThat(inchis.get(1), CoreMatchers.is(engine.generate(confs.get(1))));
+    Assert.assertThat(inchis.get(0), CoreMatchers.not(inchis.get(1)));
+  }
+}
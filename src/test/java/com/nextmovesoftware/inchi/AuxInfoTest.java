@@ -0,0 +1,125 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import net.sf.jniinchi.INCHI_OPTION;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openscience.cdk.exception.InvalidSmilesException;
+import org.openscience.cdk.graph.GraphUtil;
+import org.openscience.cdk.graph.invariant.Canon;
+import org.openscience.cdk.inchi.InChIGenerator;
+import org.openscience.cdk.inchi.InChIGeneratorFactory;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+import org.openscience.cdk.smiles.SmilesParser;
+
+import java.util.Collections;
+
+public class AuxInfoTest {
+
+  private static IAtomContainer smi(String smi) throws InvalidSmilesException {
+    return new SmilesParser(SilentChemObjectBuilder.getInstance()).parseSmiles(smi);
+  }
+
+  @Test
+  public void numbers() {
+    int[] numbers = new int[4];
+    AuxInfo.parseNumbers("AuxInfo=1/0/N:3,1,2/rA:3nCCC", numbers, 3);
+    Assert.assertArrayEquals(new int[]{2, 3, 1, 0}, numbers);
+    AuxInfo.parseNumbers("AuxInfo=1/1/N:2;1/E:m", numbers, 2);
+    Assert.assertArrayEquals(new int[]{2, 1, 1, 0}, numbers);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void numbersMissingLayer() {
+    AuxInfo.parseNumbers("AuxInfo=1/0/rA:3nCCC", new int[3], 3);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void numbersOutOfRange() {
+    AuxInfo.parseNumbers("AuxInfo=1/0/N:1,4,2", new int[3], 3);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void numbersEmptyMember() {
+    AuxInfo.parseNumbers("AuxInfo=1/0/N:1,,2", new int[3], 3);
+  }
+
+  @Test
+  public void symmetryMainSection() throws Exception {
+    // canonical order 1,3,2 and the first two (atoms 1 and 3) are equivalent
+    Assert.assertArrayEquals(new long[]{0, 1, 0},
+                             AuxInfo.symmetry("AuxInfo=1/0/N:1,3,2/E:(1,2)/rA:3nCCC", smi("CCC")));
+    // no /E: layer, every atom is its own class
+    Assert.assertArrayEquals(new long[]{0, 1, 2},
+                             AuxInfo.symmetry("AuxInfo=1/0/N:1,3,2/rA:3nCCC", smi("CCC")));
+    // trailing empty members are ignored
+    Assert.assertArrayEquals(new long[]{0, 1, 0},
+                             AuxInfo.symmetry("AuxInfo=1/0/N:1,3,2/E:(1,2,)", smi("CCC")));
+  }
+
+  @Test
+  public void symmetryComponents() throws Exception {
+    // the groups apply to each of the next 2 components
+    Assert.assertArrayEquals(new long[]{0, 0, 2, 2},
+                             AuxInfo.symmetry("AuxInfo=1/0/N:1,2;3,4/E:2*(1,2)", smi("CC.CC")));
+    // only the first component
+    Assert.assertArrayEquals(new long[]{0, 0, 2, 3},
+                             AuxInfo.symmetry("AuxInfo=1/0/N:1,2;3,4/E:(1,2);", smi("CC.CC")));
+    // only the second component
+    Assert.assertArrayEquals(new long[]{0, 1, 2, 2},
+                             AuxInfo.symmetry("AuxInfo=1/0/N:1,2;3,4/E:;(1,2)", smi("CC.CC")));
+  }
+
+  @Test
+  public void symmetryReconnected() throws Exception {
+    // the /R: section is used, and may have fewer components than the main
+    Assert.assertArrayEquals(new long[]{0, 0, 0, 0},
+                             AuxInfo.symmetry("AuxInfo=1/1/N:1,2;3,4/E:2*(1,2)/R:/0/N:1,2,3,4/E:(1,2,3,4)",
+                                              smi("CC.CC")));
+    // the main section must match the components of the molecule
+    Assert.assertNull(AuxInfo.symmetry("AuxInfo=1/0/N:1,2;3,4/E:2*(1,2)", smi("CCCC")));
+  }
+
+  @Test
+  public void symmetryMalformed() throws Exception {
+    IAtomContainer mol = smi("CCC");
+    Assert.assertNull(AuxInfo.symmetry(null, mol));
+    Assert.assertNull(AuxInfo.symmetry("AuxInfo=1/0/rA:3nCCC", mol));
+    Assert.assertNull(AuxInfo.symmetry("AuxInfo=1/0/N:1,2", mol));
+    Assert.assertNull(AuxInfo.symmetry("AuxInfo=1/0/N:1,2,2", mol));
+    Assert.assertNull(AuxInfo.symmetry("AuxInfo=1/0/N:1,2,4", mol));
+    Assert.assertNull(AuxInfo.symmetry("AuxInfo=1/0/N:1,,2,3;", mol));
+    Assert.assertNull(AuxInfo.symmetry("AuxInfo=1/0/N:1,2,3/E:(1,4)", mol));
+    Assert.assertNull(AuxInfo.symmetry("AuxInfo=1/0/N:1,2,3/E:()", mol));
+    Assert.assertNull(AuxInfo.symmetry("AuxInfo=1/0/N:1,2,3/E:(1,2", mol));
+    Assert.assertNull(AuxInfo.symmetry("AuxInfo=1/0/N:1,2,3/E:2(1,2)", mol));
+    Assert.assertNull(AuxInfo.symmetry("AuxInfo=1/0/N:1,2,3/E:2*(1,2)", mol));
+    Assert.assertNull(AuxInfo.symmetry("AuxInfo=1/0/N:1,2,3/E:x", mol));
+    Assert.assertThat(AuxInfo.symmetry("AuxInfo=1/0/N:1,2,3", mol), CoreMatchers.notNullValue());
+  }
+
+  // the classes the engine takes from the AuxInfo with setAuxInfoSymmetry,
+  // rather than falling back to Canon.symmetry
+  @Test
+  public void symmetryRecMet() throws Exception {
+    IAtomContainer mol = smi("Cl[Co](Cl)(Cl)(N(=O)(=O))(N(=O)=O)N(=O)=O");
+    InChIGenerator inchigen = InChIGeneratorFactory.getInstance().getInChIGenerator(
+        mol, Collections.singletonList(INCHI_OPTION.RecMet));
+    long[] sym = AuxInfo.symmetry(inchigen.getAuxInfo(), mol);
+    Assert.assertNotNull(inchigen.getAuxInfo(), sym);
+    // the same partition as the canonical refinement, the class ids differ
+    long[] canon = Canon.symmetry(mol, GraphUtil.toAdjList(mol));
+    for (int i = 0; i < sym.length; i++) {
+      for (int j = 0; j < sym.length; j++) {
+        Assert.assertThat(i + "," + j, sym[i] == sym[j], CoreMatchers.is(canon[i] == canon[j]));
+      }
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class ConfigTablesTest {
+
+  // the linear scan of the tables the index replaced
+  private static int scan(int[][] table, int[] perm) {
+    for (int i = 0; i < table.length; i++) {
+      int[] subtable = table[i];
+      for (int j = 0; j < subtable.length; j += perm.length) {
+        boolean found = true;
+        for (int k = 0; k < perm.length; k++)
+          if (subtable[j + k] != perm[k]) {
+            found = false;
+            break;
+          }
+        if (found)
+          return i + 1;
+      }
+    }
+    return 0;
+  }
+
+  // the backtracking over the linear scan the memo replaced
+  private static int backtrack(int[][] table, int[] perm, int best) {
+    int tmp;
+    for (int i = 0; i < perm.length; i++) {
+      int numSym = 0;
+      for (int x : perm)
+        if (x == i)
+          ++numSym;
+      if (numSym > 1) {
+        for (int j = 0; j < perm.length; j++) {
+          if (perm[j] == i) {
+            int[] copy = perm.clone();
+            for (int k = 0; k < perm.length; k++) {
+              if (k != j && copy[k] == i)
+                copy[k] = i + 1;
+            }
+            tmp = backtrack(table, copy, best);
+            if (tmp < best)
+              best = tmp;
+          }
+        }
+        return best;
+      }
+    }
+    return scan(table, perm);
+  }
+
+  // every permutation of 0..n-1, in lexicographic order
+  private static List<int[]> permutations(int n) {
+    List<int[]> perms = new ArrayList<>();
+    permute(new int[n], 0, 0, perms);
+    return perms;
+  }
+
+  private static void permute(int[] perm, int pos, int used, List<int[]> perms) {
+    if (pos == perm.length) {
+      perms.add(perm.clone());
+      return;
+    }
+    for (int x = 0; x < perm.length; x++) {
+      if ((used & (1 << x)) == 0) {
+        perm[pos] = x;
+        permute(perm, pos + 1, used | (1 << x), perms);
+      }
+    }
+  }
+
+  private static void assertSameAsScan(int[][] table, int[] orders, int n) {
+    List<int[]> perms = permutations(n);
+    Assert.assertThat(orders.length, CoreMatchers.is(perms.size()));
+    for (int i = 0; i < perms.size(); i++) {
+      int[] perm = perms.get(i);
+      Assert.assertThat(ConfigTables.rank(perm), CoreMatchers.is(i));
+      int expected = scan(table, perm);
+      Assert.assertThat(Arrays.toString(perm), expected, CoreMatchers.not(0));
+      Assert.assertThat(Arrays.toString(perm), orders[i], CoreMatchers.is(expected));
+    }
+  }
+
+  // every rank pattern of n carriers as getConfigNum makes them, the carriers
+  // in some canonical order split into runs of equivalent carriers, each
+  // carrier ranked by the start of its run
+  private static void assertMemoSameAsBacktrack(int[][] table, int[] orders, int n) {
+    AtomicIntegerArray memo     = new AtomicIntegerArray((int) Math.pow(n, n));
+    Set<String>        patterns = new HashSet<>();
+    for (int[] order : permutations(n)) {
+      for (int runs = 0; runs < 1 << (n - 1); runs++) {
+        int[] perm = new int[n];
+        int   num  = 0;
+        for (int i = 0; i < n; i++) {
+          if (i > 0 && (runs & (1 << (i - 1))) != 0)
+            num = i;
+          perm[order[i]] = num;
+        }
+        if (!patterns.add(Arrays.toString(perm)))
+          continue;
+        int expected = backtrack(table, perm, 100);
+        Assert.assertThat(Arrays.toString(perm), expected, CoreMatchers.not(100));
+        Assert.assertThat(Arrays.toString(perm),
+                          InChIMetalArch.findBest(orders, memo, perm), CoreMatchers.is(expected));
+        // and again from the memo
+        Assert.assertThat(Arrays.toString(perm),
+                          InChIMetalArch.findBest(orders, memo, perm), CoreMatchers.is(expected));
+      }
+    }
+  }
+
+  @Test
+  public void squarePlanar() {
+    assertSameAsScan(ConfigTables.SP, ConfigTables.SP_ORDERS, 4);
+    assertMemoSameAsBacktrack(ConfigTables.SP, ConfigTables.SP_ORDERS, 4);
+  }
+
+  @Test
+  public void trigonalBipyramidal() {
+    assertSameAsScan(ConfigTables.TBPY, ConfigTables.TBPY_ORDERS, 5);
+    assertMemoSameAsBacktrack(ConfigTables.TBPY, ConfigTables.TBPY_ORDERS, 5);
+  }
+
+  @Test
+  public void octahedral() {
+    assertSameAsScan(ConfigTables.OC, ConfigTables.OC_ORDERS, 6);
+    assertMemoSameAsBacktrack(ConfigTables.OC, ConfigTables.OC_ORDERS, 6);
+  }
+}
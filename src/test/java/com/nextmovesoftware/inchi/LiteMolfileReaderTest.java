@@ -0,0 +1,151 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import net.sf.jniinchi.INCHI_OPTION;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.io.iterator.IteratingSDFReader;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class LiteMolfileReaderTest {
+
+  private static List<String> records(File file) throws IOException {
+    List<String> records = new ArrayList<>();
+    try (BufferedReader rdr = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                                                                       StandardCharsets.UTF_8))) {
+      String record;
+      while ((record = Server.readSdfRecord(rdr)) != null)
+        records.add(record);
+    }
+    return records;
+  }
+
+  private static IAtomContainer readCdk(String molfile) throws IOException {
+    try (IteratingSDFReader sdfr = new IteratingSDFReader(new StringReader(molfile),
+                                                          SilentChemObjectBuilder.getInstance(), true)) {
+      return sdfr.hasNext() ? sdfr.next() : null;
+    }
+  }
+
+  // the output line as Main writes it for a record
+  private static String generate(InChIMetalArch engine, IAtomContainer mol) {
+    PerceiveFrom3d.perceive(mol);
+    return engine.generate(mol) + '\t' + mol.getTitle();
+  }
+
+  @Test
+  public void sameAsCdkReader() throws IOException {
+    File[] files = new File("examples").listFiles();
+    Assert.assertNotNull(files);
+    Arrays.sort(files);
+    List<InChIMetalArch> engines = Arrays.asList(new InChIMetalArch(),
+                                                 new InChIMetalArch(Collections.singletonList(INCHI_OPTION.RecMet)));
+    int n = 0;
+    for (File file : files) {
+      if (!file.getName().endsWith(".sdf"))
+        continue;
+      for (String record : records(file)) {
+        for (InChIMetalArch engine : engines) {
+          IAtomContainer lite = LiteMolfileReader.read(record);
+          Assert.assertNotNull(file + ": " + record, lite);
+          String expected = generate(engine, readCdk(record));
+          Assert.assertThat(expected, CoreMatchers.startsWith("InChI="));
+          Assert.assertThat(file.getName(), generate(engine, lite), CoreMatchers.is(expected));
+        }
+        n++;
+      }
+    }
+    Assert.assertThat(n, CoreMatchers.not(0));
+  }
+
+  // charges, isotopes and a radical in the atom block and property lines,
+  // the implicit hydrogens follow from the valence model
+  @Test
+  public void chargesIsotopesAndRadicals() throws IOException {
+    String atoms = "  5  4  0  0  0  0            999 V2000\n" +
+                   "    0.0000    0.0000    0.0000 C   0  0  0  0  0  0  0  0  0  0  0  0\n" +
+                   "    1.4700    0.0000    0.1000 N   0  3  0  0  0  0  0  0  0  0  0  0\n" +
+                   "    2.1000    1.2000    0.0000 O   0  5  0  0  0  0  0  0  0  0  0  0\n" +
+                   "   -0.7000    1.2000    0.3000 C   1  0  0  0  0  0  0  0  0  0  0  0\n" +
+                   "   -0.1000    2.5000    0.2000 C   0  0  0  0  0  0  0  0  0  0  0  0\n" +
+                   "  1  2  1  0  0  0  0\n" +
+                   "  2  3  1  0  0  0  0\n" +
+                   "  1  4  1  0  0  0  0\n" +
+                   "  4  5  1  0  0  0  0\n";
+    String block = "atom block\n  CDK     01012000003D\n\n" + atoms +
+                   "M  RAD  1   5   2\n" +
+                   "M  END\n$$$$\n";
+    String props = "properties\n  CDK     01012000003D\n\n" +
+                   atoms.replace(" C   1  0", " C   0  0").replace("  0  3  0", "  0  0  0").replace("  0  5  0", "  0  0  0") +
+                   "M  CHG  2   2   1   3  -1\n" +
+                   "M  ISO  1   4  13\n" +
+                   "M  RAD  1   5   2\n" +
+                   "M  END\n$$$$\n";
+    InChIMetalArch engine = new InChIMetalArch();
+    for (String record : Arrays.asList(block, props)) {
+      IAtomContainer lite = LiteMolfileReader.read(record);
+      Assert.assertNotNull(record, lite);
+      String expected = generate(engine, readCdk(record));
+      Assert.assertThat(expected, CoreMatchers.containsString("/i"));
+      Assert.assertThat(generate(engine, lite), CoreMatchers.is(expected));
+    }
+  }
+
+  @Test
+  public void v3000FallsBack() throws IOException {
+    String molfile = "methanol\n" +
+                     "  CDK     01012000003D\n" +
+                     "\n" +
+                     "  0  0  0     0  0            999 V3000\n" +
+                     "M  V30 BEGIN CTAB\n" +
+                     "M  V30 COUNTS 2 1 0 0 0\n" +
+                     "M  V30 BEGIN ATOM\n" +
+                     "M  V30 1 C 0 0 0 0\n" +
+                     "M  V30 2 O 1.4 0 0.1 0\n" +
+                     "M  V30 END ATOM\n" +
+                     "M  V30 BEGIN BOND\n" +
+                     "M  V30 1 1 1 2\n" +
+                     "M  V30 END BOND\n" +
+                     "M  V30 END CTAB\n" +
+                     "M  END\n" +
+                     "$$$$\n";
+    Assert.assertNull(LiteMolfileReader.read(molfile));
+    Assert.assertThat(readCdk(molfile).getAtomCount(), CoreMatchers.is(2));
+  }
+
+  @Test
+  public void atomListFallsBack() throws IOException {
+    String molfile = "list\n" +
+                     "  CDK     01012000003D\n" +
+                     "\n" +
+                     "  2  1  1  0  0  0            999 V2000\n" +
+                     "    0.0000    0.0000    0.0000 C   0  0  0  0  0  0  0  0  0  0  0  0\n" +
+                     "    1.4000    0.0000    0.1000 L   0  0  0  0  0  0  0  0  0  0  0  0\n" +
+                     "  1  2  1  0  0  0  0\n" +
+                     "  2 F    2   8   7\n" +
+                     "M  ALS   2  2 F O   N   \n" +
+                     "M  END\n" +
+                     "$$$$\n";
+    Assert.assertNull(LiteMolfileReader.read(molfile));
+    Assert.assertThat(readCdk(molfile).getAtomCount(), CoreMatchers.is(2));
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LruCacheTest {
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    LruCache<String, String> cache = new LruCache<>(2, 1);
+    cache.put("a", "1");
+    cache.put("b", "2");
+    Assert.assertThat(cache.get("a"), CoreMatchers.is("1"));
+    cache.put("c", "3");
+    Assert.assertThat(cache.get("b"), CoreMatchers.nullValue());
+    Assert.assertThat(cache.get("a"), CoreMatchers.is("1"));
+    Assert.assertThat(cache.get("c"), CoreMatchers.is("3"));
+    Assert.assertThat(cache.hits(), CoreMatchers.is(3L));
+    Assert.assertThat(cache.misses(), CoreMatchers.is(1L));
+  }
+
+  @Test
+  public void segmentsHoldTheCapacity() {
+    // the capacity is shared by the segments, some hold one more entry
+    int[][] cases = {{3, 2}, {5, 4}, {10, 8}, {10, 16}};
+    for (int[] c : cases) {
+      LruCache<Integer, Integer> cache = new LruCache<>(c[0], c[1]);
+      for (int i = 0; i < 1000; i++)
+        cache.put(i, i);
+      Assert.assertThat(c[0] + "/" + c[1], cache.size(), CoreMatchers.is(c[0]));
+    }
+  }
+}
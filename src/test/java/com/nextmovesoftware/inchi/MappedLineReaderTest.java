@@ -0,0 +1,155 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MappedLineReaderTest {
+
+  // every kind of line terminator, empty lines, a multi-byte character and
+  // a final line without a terminator
+  private static final String SMI = "CCO ethanol\r\n" +
+                                    "c1ccccc1 benzene\n" +
+                                    "\r\n" +
+                                    "O water\r" +
+                                    "\n" +
+                                    "[Co] cobalt\u00e9\r\n" +
+                                    "\r" +
+                                    "N ammonia";
+
+  // a record terminated by "$$$$\r\n", an empty record and a final record
+  // without a '$$$$' line
+  private static final String SDF = "ethanol\n  CDK\n\nM  END\n$$$$\n" +
+                                    "benzene\r\n  CDK\r\n\r\nM  END\r\n$$$$\r\n" +
+                                    "$$$$\n" +
+                                    "water\n  CDK\n\nM  END\n$$$$" +
+                                    "\rammonia\n  CDK\n\nM  END\n";
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File write(String content) throws IOException {
+    File file = tmp.newFile();
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(content.getBytes(StandardCharsets.UTF_8));
+    }
+    return file;
+  }
+
+  private static List<String> readLines(String content) throws IOException {
+    List<String>   lines = new ArrayList<>();
+    BufferedReader rdr   = new BufferedReader(new StringReader(content));
+    String         line;
+    while ((line = rdr.readLine()) != null)
+      lines.add(line);
+    return lines;
+  }
+
+  private static List<String> readLines(File file, int winSize) throws IOException {
+    List<String> lines = new ArrayList<>();
+    try (FileChannel channel = new FileInputStream(file).getChannel()) {
+      MappedLineReader      rdr = new MappedLineReader(channel, 0, channel.size(), winSize);
+      MappedLineReader.Line line;
+      while ((line = rdr.next()) != null)
+        lines.add(line.toString());
+    }
+    return lines;
+  }
+
+  private static List<String> readRecords(File file, int winSize) throws IOException {
+    List<String> records = new ArrayList<>();
+    try (FileChannel channel = new FileInputStream(file).getChannel()) {
+      MappedLineReader      rdr = new MappedLineReader(channel, 0, channel.size(), winSize);
+      MappedLineReader.Line record;
+      while ((record = rdr.nextRecord()) != null)
+        records.add(record.toString());
+    }
+    return records;
+  }
+
+  // the window boundary falls on every byte of the file, including between
+  // the '\r' and '\n' of a terminator
+  @Test
+  public void linesAsBufferedReader() throws IOException {
+    File         file     = write(SMI);
+    List<String> expected = readLines(SMI);
+    Assert.assertThat(expected.get(expected.size() - 1), CoreMatchers.is("N ammonia"));
+    Assert.assertThat(readLines(file, Integer.MAX_VALUE), CoreMatchers.is(expected));
+    int longest = 0;
+    for (String line : expected)
+      longest = Math.max(longest, line.getBytes(StandardCharsets.UTF_8).length);
+    for (int winSize = longest + 2; winSize <= file.length() + 1; winSize++)
+      Assert.assertThat("window=" + winSize, readLines(file, winSize), CoreMatchers.is(expected));
+  }
+
+  @Test
+  public void crlfSplitAcrossWindows() throws IOException {
+    // the first window ends between the '\r' and '\n' of the second line,
+    // which is read again from the next window
+    File file = write("CC\r\nCCC\r\nCCCC");
+    Assert.assertThat(readLines(file, 8), CoreMatchers.is(readLines("CC\nCCC\nCCCC")));
+  }
+
+  @Test
+  public void offsets() throws IOException {
+    File   file  = write(SMI);
+    byte[] bytes = SMI.getBytes(StandardCharsets.UTF_8);
+    try (FileChannel channel = new FileInputStream(file).getChannel()) {
+      MappedLineReader      rdr = new MappedLineReader(channel, 0, channel.size(), 24);
+      MappedLineReader.Line line;
+      while ((line = rdr.next()) != null) {
+        String text = new String(bytes, (int) line.offset(), line.length(), StandardCharsets.UTF_8);
+        Assert.assertThat(line.toString(), CoreMatchers.is(text));
+      }
+    }
+  }
+
+  @Test
+  public void records() throws IOException {
+    File         file     = write(SDF);
+    List<String> expected = new ArrayList<>();
+    expected.add("ethanol\n  CDK\n\nM  END\n$$$$\n");
+    expected.add("benzene\r\n  CDK\r\n\r\nM  END\r\n$$$$\r\n");
+    expected.add("$$$$\n");
+    expected.add("water\n  CDK\n\nM  END\n$$$$\r");
+    expected.add("ammonia\n  CDK\n\nM  END\n");
+    Assert.assertThat(readRecords(file, Integer.MAX_VALUE), CoreMatchers.is(expected));
+    int longest = 0;
+    for (String record : expected)
+      longest = Math.max(longest, record.length());
+    for (int winSize = longest + 2; winSize <= file.length() + 1; winSize++)
+      Assert.assertThat("window=" + winSize, readRecords(file, winSize), CoreMatchers.is(expected));
+  }
+
+  @Test
+  public void blankFinalRecord() throws IOException {
+    File file = write("ethanol\nM  END\n$$$$\r\n \n\t\n");
+    Assert.assertThat(readRecords(file, Integer.MAX_VALUE).size(), CoreMatchers.is(1));
+    Assert.assertThat(readRecords(file, 23).size(), CoreMatchers.is(1));
+  }
+
+  @Test(expected = IOException.class)
+  public void lineLongerThanWindow() throws IOException {
+    readLines(write("CCCCCCCCCC\nCC\n"), 4);
+  }
+}
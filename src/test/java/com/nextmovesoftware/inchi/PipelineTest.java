@@ -0,0 +1,100 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PipelineTest {
+
+  // the numbers 1..n
+  private static Pipeline.Source<String> numbers(final int n) {
+    return new Pipeline.Source<String>() {
+      private int i = 0;
+
+      @Override
+      public String next() {
+        return i < n ? Integer.toString(++i) : null;
+      }
+    };
+  }
+
+  @Test
+  public void writesInOrder() throws IOException {
+    StringWriter wtr = new StringWriter();
+    new Pipeline<String>(4, true).run(numbers(5), new Pipeline.Worker<String>() {
+      @Override
+      public String process(String record) {
+        return "n" + record;
+      }
+    }, wtr);
+    Assert.assertThat(wtr.toString(), CoreMatchers.is("n1\nn2\nn3\nn4\nn5\n"));
+  }
+
+  @Test(timeout = 10000)
+  public void workerErrorFailsTheRun() {
+    try {
+      new Pipeline<String>(2, true).run(numbers(1000), new Pipeline.Worker<String>() {
+        @Override
+        public String process(String record) {
+          if (record.equals("500"))
+            throw new OutOfMemoryError("test");
+          return record;
+        }
+      }, new StringWriter());
+      Assert.fail("expected the run to fail");
+    } catch (IOException e) {
+      Assert.assertThat(e.getCause(), CoreMatchers.instanceOf(OutOfMemoryError.class));
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void abandonedRecordIsSettledOnce() throws Exception {
+    final AtomicInteger  settled = new AtomicInteger();
+    final AtomicInteger  late    = new AtomicInteger();
+    final CountDownLatch done    = new CountDownLatch(1);
+    Pipeline<String> pipeline = new Pipeline<>(1, true, 100);
+    pipeline.setFailed(new Pipeline.Worker<String>() {
+      @Override
+      public String process(String record) {
+        if (Pipeline.settle())
+          settled.incrementAndGet();
+        return "failed " + record;
+      }
+    });
+    StringWriter wtr = new StringWriter();
+    pipeline.run(numbers(3), new Pipeline.Worker<String>() {
+      @Override
+      public String process(String record) {
+        if (record.equals("2")) {
+          long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1000);
+          while (System.nanoTime() < end) {
+            // ignore the interrupt, as a busy native call would
+          }
+          if (!Pipeline.settle())
+            late.incrementAndGet();
+          done.countDown();
+        } else if (Pipeline.settle()) {
+          settled.incrementAndGet();
+        }
+        return "n" + record;
+      }
+    }, wtr);
+    Assert.assertThat(wtr.toString(), CoreMatchers.is("n1\nfailed 2\nn3\n"));
+    done.await();
+    // the watchdog settled record 2, the late worker can not
+    Assert.assertThat(settled.get(), CoreMatchers.is(3));
+    Assert.assertThat(late.get(), CoreMatchers.is(1));
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ProcessPoolTest {
+
+  // records whose InChI fails (with and without a title), a bad SMILES and
+  // an empty InChI
+  private static final String SMI = "C[Co]\n" +
+                                    "*C\n" +
+                                    "[Xx]C\n" +
+                                    "*C star\n" +
+                                    "C1CC bad\n" +
+                                    "[H]\n" +
+                                    "CCO ethanol\n";
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  // the STDOUT of the command line application
+  private static String run(String... args) throws IOException, InterruptedException {
+    List<String> command = new ArrayList<>();
+    command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(Main.class.getName());
+    command.addAll(Arrays.asList(args));
+    ProcessBuilder pb = new ProcessBuilder(command);
+    pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+    Process proc = pb.start();
+    proc.getOutputStream().close();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (InputStream in = proc.getInputStream()) {
+      byte[] buf = new byte[4096];
+      int    len;
+      while ((len = in.read(buf)) >= 0)
+        bytes.write(buf, 0, len);
+    }
+    Assert.assertThat(proc.waitFor(), CoreMatchers.is(0));
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test(timeout = 60000)
+  public void failingRecordsAsInProcess() throws Exception {
+    File input = tmp.newFile("input.smi");
+    try (Writer wtr = new OutputStreamWriter(new FileOutputStream(input), StandardCharsets.UTF_8)) {
+      wtr.write(SMI);
+    }
+    String expected = run(input.getPath());
+    // the bad SMILES has no output line
+    Assert.assertThat(expected.split("\n", -1).length, CoreMatchers.is(7));
+    Assert.assertThat(expected, CoreMatchers.containsString("\n\n\n\tstar\n"));
+    Assert.assertThat(run("-procs", "1", input.getPath()), CoreMatchers.is(expected));
+    Assert.assertThat(run("-procs", "2", input.getPath()), CoreMatchers.is(expected));
+  }
+}
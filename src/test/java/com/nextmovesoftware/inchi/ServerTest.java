@@ -0,0 +1,75 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+public class ServerTest {
+
+  // the first line of a record, fails on 'fail' and has no result for
+  // 'none'
+  private static final Pipeline.Worker<String> WORKER = new Pipeline.Worker<String>() {
+    @Override
+    public String process(String record) {
+      String first = record.split("\n", 2)[0];
+      if (first.startsWith("fail"))
+        throw new IllegalArgumentException(first);
+      if (first.startsWith("none"))
+        return null;
+      return first.toUpperCase();
+    }
+  };
+
+  private static String serve(String input, boolean sdf) throws IOException {
+    return serve(input, sdf, false);
+  }
+
+  private static String serve(String input, boolean sdf, boolean status) throws IOException {
+    StringWriter wtr = new StringWriter();
+    new Server(WORKER, sdf, status).serve(new BufferedReader(new StringReader(input)), wtr);
+    return wtr.toString();
+  }
+
+  @Test
+  public void smilesLines() throws IOException {
+    Assert.assertThat(serve("c ethanol\r\nfail\n\nnone\rn ammonia", false),
+                      CoreMatchers.is("C ETHANOL\n\n\n\nN AMMONIA\n"));
+  }
+
+  @Test
+  public void sdfRecords() throws IOException {
+    String sdf = "ethanol\n  CDK\n\nM  END\n$$$$\n" +
+                 "fail\r\n  CDK\r\n\r\nM  END\r\n$$$$\r\n" +
+                 "none\n  CDK\n\nM  END\n$$$$\n" +
+                 "water\n  CDK\n\nM  END\n";
+    Assert.assertThat(serve(sdf, true), CoreMatchers.is("ETHANOL\n\n\nWATER\n"));
+    // a blank end is not a record
+    Assert.assertThat(serve(sdf + "$$$$\n\n \n", true), CoreMatchers.is("ETHANOL\n\n\nWATER\n"));
+  }
+
+  // an empty result, no result and a failure can be told apart
+  @Test
+  public void status() throws IOException {
+    Assert.assertThat(serve("c ethanol\nfail\n\nnone\n", false, true),
+                      CoreMatchers.is("+C ETHANOL\n!\n+\n-\n"));
+    Assert.assertThat(serve("fail\nM  END\n$$$$\nwater\nM  END\n", true, true),
+                      CoreMatchers.is("!\n+WATER\n"));
+  }
+
+  @Test
+  public void emptyInput() throws IOException {
+    Assert.assertThat(serve("", false), CoreMatchers.is(""));
+    Assert.assertThat(serve("", true), CoreMatchers.is(""));
+  }
+}
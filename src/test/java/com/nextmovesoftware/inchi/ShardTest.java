@@ -0,0 +1,165 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ShardTest {
+
+  private static final String SMI = "CCO ethanol\n" +
+                                    "c1ccccc1 benzene\r\n" +
+                                    "\n" +
+                                    "Cl[Co](Cl)(Cl)(N(=O)=O)(N(=O)=O)N(=O)=O cobalt\n" +
+                                    "C1CC1\n" +
+                                    "O water\r" +
+                                    "N ammonia";
+
+  private static final String SDF = "ethanol\n  CDK\n\n  3  2  0  0  0  0            999 V2000\nM  END\n$$$$\n" +
+                                    "benzene\n  CDK\n\n  6  6  0  0  0  0            999 V2000\nM  END\n$$$$\n" +
+                                    "\n  CDK\n\n  0  0  0  0  0  0            999 V2000\nM  END\n$$$$\n" +
+                                    "water\n  CDK\n\n  1  0  0  0  0  0            999 V2000\nM  END\n$$$$\n" +
+                                    "ammonia\n  CDK\n\n  1  0  0  0  0  0            999 V2000\nM  END\n";
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  // the first line of a record and its length
+  private static final Pipeline.Worker<Object> WORKER = new Pipeline.Worker<Object>() {
+    @Override
+    public String process(Object record) {
+      String text = record.toString();
+      int    end  = 0;
+      while (end < text.length() && text.charAt(end) != '\n' && text.charAt(end) != '\r')
+        end++;
+      return text.substring(0, end) + " " + text.length();
+    }
+  };
+
+  private File write(String name, String content) throws IOException {
+    File file = tmp.newFile(name);
+    try (Writer wtr = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+      wtr.write(content);
+    }
+    return file;
+  }
+
+  private static Pipeline.Source<Object> source(final MappedLineReader rdr, final boolean sdf) {
+    return new Pipeline.Source<Object>() {
+      @Override
+      public Object next() throws IOException {
+        return sdf ? rdr.nextRecord() : rdr.next();
+      }
+    };
+  }
+
+  private static Pipeline.Source<Object> source(final List<?> records) {
+    return new Pipeline.Source<Object>() {
+      private int i = 0;
+
+      @Override
+      public Object next() {
+        return i < records.size() ? records.get(i++) : null;
+      }
+    };
+  }
+
+  private static String unsplit(File input, boolean sdf) throws IOException {
+    StringWriter wtr = new StringWriter();
+    try (FileChannel channel = new FileInputStream(input).getChannel()) {
+      new Pipeline<Object>(2, true).run(source(new MappedLineReader(channel), sdf), WORKER, wtr);
+    }
+    return wtr.toString();
+  }
+
+  // run each of the n shares of a file and merge the output
+  private String sharded(File input, boolean sdf, int n) throws IOException {
+    List<File> outputs = new ArrayList<>();
+    for (int i = n; i >= 1; i--) {
+      Shard shard  = Shard.parse(i + "/" + n);
+      File  output = tmp.newFile(input.getName() + "." + i + "-" + n);
+      try (FileChannel channel = new FileInputStream(input).getChannel();
+           Writer wtr = new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8)) {
+        MappedLineReader rdr = sdf ? shard.records(channel) : shard.lines(channel);
+        new Pipeline<Shard.Record<Object>>(2, true).run(shard.select(source(rdr, sdf)),
+                                                        shard.worker(WORKER), wtr);
+      }
+      outputs.add(output);
+    }
+    StringWriter wtr = new StringWriter();
+    Shard.merge(outputs, wtr);
+    return wtr.toString();
+  }
+
+  // every Nth record of a source that is not a file (STDIN)
+  private String sharded(List<?> records, int n) throws IOException {
+    List<File> outputs = new ArrayList<>();
+    for (int i = 1; i <= n; i++) {
+      Shard shard  = Shard.parse(i + "/" + n);
+      File  output = tmp.newFile("stdin." + i + "-" + n);
+      try (Writer wtr = new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8)) {
+        new Pipeline<Shard.Record<Object>>(2, true).run(shard.select(source(records)),
+                                                        shard.worker(WORKER), wtr);
+      }
+      outputs.add(output);
+    }
+    StringWriter wtr = new StringWriter();
+    Shard.merge(outputs, wtr);
+    return wtr.toString();
+  }
+
+  @Test
+  public void smilesShares() throws IOException {
+    File   input    = write("input.smi", SMI);
+    String expected = unsplit(input, false);
+    Assert.assertThat(expected.split("\n").length, CoreMatchers.is(7));
+    for (int n : new int[]{1, 2, 3, 7, 20})
+      Assert.assertThat("n=" + n, sharded(input, false, n), CoreMatchers.is(expected));
+  }
+
+  @Test
+  public void sdfShares() throws IOException {
+    File   input    = write("input.sdf", SDF);
+    String expected = unsplit(input, true);
+    Assert.assertThat(expected.split("\n").length, CoreMatchers.is(5));
+    for (int n : new int[]{1, 2, 3, 5, 20})
+      Assert.assertThat("n=" + n, sharded(input, true, n), CoreMatchers.is(expected));
+  }
+
+  @Test
+  public void streamShares() throws IOException {
+    List<String> records = new ArrayList<>();
+    Collections.addAll(records, SMI.split("\r\n|\r|\n"));
+    StringWriter wtr = new StringWriter();
+    new Pipeline<Object>(2, true).run(source(records), WORKER, wtr);
+    for (int n : new int[]{1, 2, 3, 7, 20})
+      Assert.assertThat("n=" + n, sharded(records, n), CoreMatchers.is(wtr.toString()));
+  }
+
+  @Test
+  public void badShare() {
+    Assert.assertNull(Shard.parse("0/2"));
+    Assert.assertNull(Shard.parse("3/2"));
+    Assert.assertNull(Shard.parse("1"));
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StatsTest {
+
+  // within 1/16th of the value, half a sub-bucket
+  private static void assertClose(String msg, long actual, long expected) {
+    Assert.assertTrue(msg + ": " + actual + " vs " + expected,
+                      16 * Math.abs(actual - expected) <= expected);
+  }
+
+  @Test
+  public void buckets() {
+    int prev = -1;
+    for (long v = 0; v < 1L << 62; v += 1 + v / 97) {
+      int bucket = Stats.Histogram.bucket(v);
+      Assert.assertTrue("v=" + v, bucket >= prev && bucket < 64 * 8);
+      assertClose("v=" + v, Stats.Histogram.value(bucket), v);
+      prev = bucket;
+    }
+    Assert.assertTrue(Stats.Histogram.bucket(Long.MAX_VALUE) < 64 * 8);
+  }
+
+  @Test
+  public void smallValuesAreExact() {
+    Stats.Histogram hist = new Stats.Histogram();
+    for (long v = 0; v < 8; v++)
+      hist.add(v);
+    Assert.assertThat(hist.percentile(0.0), CoreMatchers.is(0L));
+    Assert.assertThat(hist.percentile(0.5), CoreMatchers.is(3L));
+    Assert.assertThat(hist.percentile(1.0), CoreMatchers.is(7L));
+  }
+
+  @Test
+  public void percentiles() {
+    Stats.Histogram hist = new Stats.Histogram();
+    Assert.assertThat(hist.percentile(0.5), CoreMatchers.is(0L));
+    // in an order that is not sorted
+    for (long v = 1; v <= 1000; v++)
+      hist.add((v * 337) % 1000 + 1);
+    assertClose("p50", hist.percentile(0.50), 500);
+    assertClose("p90", hist.percentile(0.90), 900);
+    assertClose("p99", hist.percentile(0.99), 990);
+    // never more than the largest value
+    Assert.assertTrue(hist.percentile(1.0) <= 1000);
+    assertClose("p100", hist.percentile(1.0), 1000);
+  }
+
+  @Test
+  public void percentileOfOneValue() {
+    Stats.Histogram hist = new Stats.Histogram();
+    hist.add(123456789);
+    assertClose("p50", hist.percentile(0.50), 123456789);
+    Assert.assertThat(hist.percentile(0.99), CoreMatchers.is(hist.percentile(0.50)));
+  }
+}
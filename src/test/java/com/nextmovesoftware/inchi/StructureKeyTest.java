@@ -0,0 +1,47 @@
+/*
+ * =====================================
+ *  Copyright (c) 2019 NextMove Software
+ * =====================================
+ */
+
+package com.nextmovesoftware.inchi;
+
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+import org.openscience.cdk.smiles.SmilesParser;
+
+import javax.vecmath.Point3d;
+
+public class StructureKeyTest {
+
+  // FC(Cl)(Br)I with the substituents on the corners of a tetrahedron
+  private static IAtomContainer halomethane(Point3d f, Point3d cl, Point3d br, Point3d i) throws Exception {
+    SmilesParser   smipar = new SmilesParser(SilentChemObjectBuilder.getInstance());
+    IAtomContainer mol    = smipar.parseSmiles("FC(Cl)(Br)I");
+    mol.getAtom(0).setPoint3d(f);
+    mol.getAtom(1).setPoint3d(new Point3d(0, 0, 0));
+    mol.getAtom(2).setPoint3d(cl);
+    mol.getAtom(3).setPoint3d(br);
+    mol.getAtom(4).setPoint3d(i);
+    return mol;
+  }
+
+  @Test
+  public void enantiomersAreNotConformers() throws Exception {
+    Point3d a = new Point3d(1, 1, 1);
+    Point3d b = new Point3d(1, -1, -1);
+    Point3d c = new Point3d(-1, 1, -1);
+    Point3d d = new Point3d(-1, -1, 1);
+    IAtomContainer r = halomethane(a, b, c, d);
+    IAtomContainer s = halomethane(a, c, b, d);
+    // the same configuration with different coordinates
+    IAtomContainer r2 = halomethane(new Point3d(2, 2, 2), new Point3d(2, -2, -2),
+                                    new Point3d(-2, 2, -2), new Point3d(-2, -2, 2));
+    Assert.assertThat(StructureKey.connectionTable(r), CoreMatchers.is(StructureKey.connectionTable(s)));
+    Assert.assertThat(StructureKey.stereoFrom3d(r), CoreMatchers.not(StructureKey.stereoFrom3d(s)));
+    Assert.assertThat(StructureKey.stereoFrom3d(r), CoreMatchers.is(StructureKey.stereoFrom3d(r2)));
+  }
+}